@@ -9,17 +9,14 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
-
-import java.io.StringReader;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 
 import it.this1.wificonnector.iotter.wifi.WifiConnector;
 import it.this1.wificonnector.iotter.ws.IotterWsClientBase;
 import it.this1.wificonnector.iotter.ws.IotterWsScanList;
+import it.this1.wificonnector.iotter.ws.IotterWsResponses;
+import it.this1.wificonnector.iotter.ws.IotterWsScheduler;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -37,6 +34,12 @@ public class MainActivity extends AppCompatActivity {
         wifiConnector = new WifiConnector(getApplicationContext());
     }
 
+    @Override
+    protected void onDestroy() {
+        wifiConnector.release();
+        super.onDestroy();
+    }
+
 
     /**
      * Example to show the use of {@link WifiConnector}
@@ -51,6 +54,7 @@ public class MainActivity extends AppCompatActivity {
                 public void onConnected(WifiInfo info) {
                     Toast.makeText(MainActivity.this, "CONNECTED time elapsed :"+ (System.currentTimeMillis()- startTime)/1000f+"s\n"+info.toString().replace(",","\n"),
                             Toast.LENGTH_LONG).show();
+                    Log.d(TAG, "connection metrics\n" + wifiConnector.getMetrics());
                     WSScanList1();
                 }
 
@@ -128,7 +132,7 @@ public class MainActivity extends AppCompatActivity {
      */
     private void WSScanList() {
         IotterWsClientBase.run(new IotterWsClientBase.IottersWsCallbacks() {
-            Timer timer = new Timer();
+            ScheduledFuture<?> timer;
             @Override
             public String onGetURI() {
                 return "ws://192.168.4.1/web.cgi";
@@ -142,7 +146,7 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onError(final String error) {
-                if(timer != null) timer.cancel();
+                IotterWsScheduler.cancel(timer);
                 showToast("WS ERROR "+error, Toast.LENGTH_LONG);
             }
 
@@ -151,7 +155,7 @@ public class MainActivity extends AppCompatActivity {
                 Log.d(TAG, "onExecuteCommand");
 
                 // Launch a timer to check scan result
-                timer.scheduleAtFixedRate(new TimerTask() {
+                timer = IotterWsScheduler.scheduleWithFixedDelay(new Runnable() {
                     private int counter = 0;
                     @Override
                     public void run() {
@@ -178,49 +182,19 @@ public class MainActivity extends AppCompatActivity {
                             @Override
                             public boolean onCommandResponse(final String response) {
                                 Log.d(TAG, "scan list "+response);
-                                // i.e. response is an XML parse it and decide if stop timer
-                                try {
-                                    XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                                    factory.setNamespaceAware(true);
-                                    XmlPullParser xpp = factory.newPullParser();
-
-                                    String startTag = "";
-
-                                    xpp.setInput(new StringReader(response));
-                                    int eventType = xpp.getEventType();
-                                    while (eventType != XmlPullParser.END_DOCUMENT) {
-                                        String tagname = xpp.getName();
-                                        if (eventType == XmlPullParser.START_DOCUMENT) {
-                                            //System.out.println("Start document");
-                                        } else if (eventType == XmlPullParser.START_TAG) {
-                                            //System.out.println("Start tag " + xpp.getName());
-                                            startTag = xpp.getName();
-                                        } else if (eventType == XmlPullParser.END_TAG) {
-                                            //System.out.println("End tag " + xpp.getName());
-                                        } else if (eventType == XmlPullParser.TEXT) {
-                                            //System.out.println("Text " + xpp.getText());
-                                            if(startTag.equalsIgnoreCase("total")) {
-                                                int total = Integer.parseInt(xpp.getText());
-                                                if(total > 0) {
-                                                    showToast("SCAN LIST time elapsed:"+ (System.currentTimeMillis()- startTime)/1000+"s\n"+response, Toast.LENGTH_LONG);
-                                                    timer.cancel();
-                                                    // Delay wifi disconnection and reconnection to let gracefully
-                                                    // close socket.
-                                                    new Timer().schedule(new TimerTask() {
-                                                        @Override
-                                                        public void run() {
-                                                            wifiConnector.disconnect();
-                                                            connect2AccessPoint();
-                                                        }
-                                                    }, 5000);
-                                                }
-                                            }
+                                // i.e. response is an XML, decode it and decide if stop timer
+                                if(IotterWsResponses.readScanTotal(response) > 0) {
+                                    showToast("SCAN LIST time elapsed:"+ (System.currentTimeMillis()- startTime)/1000+"s\n"+response, Toast.LENGTH_LONG);
+                                    IotterWsScheduler.cancel(timer);
+                                    // Delay wifi disconnection and reconnection to let gracefully
+                                    // close socket.
+                                    IotterWsScheduler.schedule(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            wifiConnector.disconnect();
+                                            connect2AccessPoint();
                                         }
-                                        eventType = xpp.next();
-                                    }
-                                }
-                                catch(Exception e) {
-                                    Log.e(TAG, "onCommandResponse", e);
+                                    }, 5000);
                                 }
                                 return true;
                             }
@@ -303,14 +277,15 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public boolean onCommandResponse(String response) {
-                showToast("WIFI Station time elapsed:"+ (System.currentTimeMillis()- startTime)/1000+"s\nstatus:"+response, Toast.LENGTH_LONG);
+                showToast("WIFI Station time elapsed:"+ (System.currentTimeMillis()- startTime)/1000+"s\nstatus:"+
+                        IotterWsResponses.decode("wifi_st_sta", response), Toast.LENGTH_LONG);
 
                 wifiConnector.disconnect();
                 //wifiConnector.forget();
 
                 // Delay wifi disconnection and reconnection to let system gracefully
                 // close socket.
-                new Timer().schedule(new TimerTask() {
+                IotterWsScheduler.schedule(new Runnable() {
                     @Override
                     public void run() {
                         connect2AccessPoint();
@@ -3,25 +3,176 @@ package it.this1.wificonnector.iotter.wifi;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 
+import java.util.BitSet;
+
 public abstract class ConfigurationSecurities {
+
+	private static final int MAX_TEMPLATES = 8;
+
+	private final SecurityDescriptorCache cache = new SecurityDescriptorCache();
+	private final WifiConfiguration[] templates = new WifiConfiguration[MAX_TEMPLATES];
+
+	/**
+     * Classify a configuration. Only fields in
+     * {@link SecurityDescriptorCache#pattern(WifiConfiguration)} can be read.
+     * @return The security code of a given {@link WifiConfiguration}.
+     */
+	abstract int classify(WifiConfiguration wifiConfig);
+	/**
+     * @param capabilities flags parsed by {@link ScanCapabilities}
+     * @return The security code of scan results with these capabilities.
+     */
+	abstract int classify(int capabilities);
+	/**
+     * @param capabilities flags parsed by {@link ScanCapabilities}
+     * @param security security code of capabilities
+     * @return The string shown to user for these capabilities.
+     */
+	abstract String getDisplaySecirityString(int capabilities, int security);
+	/**
+     * Set the security fields (key management, ciphers, protocols...)
+     * of a security on an empty configuration, used as template.
+     */
+	abstract void setupTemplate(WifiConfiguration template, int security);
+	/**
+     * Set the key of a network.
+     * @param password Password of the network, empty is left untouched.
+     */
+	abstract void setupKey(WifiConfiguration config, int security, final String password);
+	public abstract boolean isOpenNetwork(int security);
+	/**
+     * @return The security string of a security code, always the same instance.
+     */
+	public abstract String toSecurityString(int security);
+	/**
+     * @return The security code of a security string, the open one if empty, -1 if not valid.
+     */
+	public abstract int toSecurityCode(String security);
+
+	/**
+     * Fill in the security fields of WifiConfiguration config,
+     * copied from the template of the security.
+     * @param config The object to fill.
+     * @param security Security code, if is open password is ignored.
+     * @param password Password of the network if security is not open.
+     */
+	public void setupSecurity(WifiConfiguration config, int security, final String password) {
+		final WifiConfiguration template = getTemplate(security);
+		copy(template.allowedAuthAlgorithms, config.allowedAuthAlgorithms);
+		copy(template.allowedGroupCiphers, config.allowedGroupCiphers);
+		copy(template.allowedKeyManagement, config.allowedKeyManagement);
+		copy(template.allowedPairwiseCiphers, config.allowedPairwiseCiphers);
+		copy(template.allowedProtocols, config.allowedProtocols);
+		config.wepTxKeyIndex = template.wepTxKeyIndex;
+		setupKey(config, security, password);
+	}
+	/**
+     * @return true if password is a valid key for the security, open accepts anything
+     */
+	public boolean isValidKey(int security, String password) {
+		if(isOpenNetwork(security)) {
+			return true;
+		}
+		if(isPskNetwork(security)) {
+			return WifiKeys.isValidPsk(password);
+		}
+		final WifiConfiguration template = getTemplate(security);
+		if(template.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.NONE)) {
+			return WifiKeys.isValidWepKey(password);
+		}
+		return password != null;
+	}
+	/**
+     * @return true if security uses a WPA pre-shared key
+     */
+	public boolean isPskNetwork(int security) {
+		return getTemplate(security).allowedKeyManagement.get(WifiConfiguration.KeyMgmt.WPA_PSK);
+	}
+	/**
+     * @return The security code of a given {@link WifiConfiguration}.
+     */
+	public int getWifiConfigurationSecurityCode(WifiConfiguration wifiConfig) {
+		final int pattern = SecurityDescriptorCache.pattern(wifiConfig);
+		int security = cache.getSecurity(pattern);
+		if(security == -1) {
+			security = classify(wifiConfig);
+			cache.putSecurity(pattern, security);
+		}
+		return security;
+	}
+	/**
+     * @return The security code of a given {@link ScanResult}, nothing is allocated
+     * once its capabilities have been seen.
+     */
+	public int getScanResultSecurityCode(ScanResult scanResult) {
+		return getDescriptor(scanResult).security;
+	}
+	public String getDisplaySecirityString(final ScanResult scanResult) {
+		return getDescriptor(scanResult).display;
+	}
+	/**
+     * @return The classification of a given {@link ScanResult}, shared by
+     * results with the same capabilities.
+     */
+	SecurityDescriptor getDescriptor(ScanResult scanResult) {
+		final String key = scanResult.capabilities == null ? "" : scanResult.capabilities;
+		SecurityDescriptor descriptor = cache.get(key);
+		if(descriptor == null) {
+			final int capabilities = ScanCapabilities.parse(key);
+			final int security = classify(capabilities);
+			descriptor = new SecurityDescriptor(capabilities, security, getDisplaySecirityString(capabilities, security));
+			cache.put(key, descriptor);
+		}
+		return descriptor;
+	}
+	SecurityDescriptorCache getCache() {
+		return cache;
+	}
+	private WifiConfiguration getTemplate(int security) {
+		if(security < 0 || security >= MAX_TEMPLATES) {
+			// not valid, nothing to cache
+			final WifiConfiguration template = new WifiConfiguration();
+			setupTemplate(template, security);
+			return template;
+		}
+		synchronized (templates) {
+			if(templates[security] == null) {
+				final WifiConfiguration template = new WifiConfiguration();
+				setupTemplate(template, security);
+				templates[security] = template;
+			}
+			return templates[security];
+		}
+	}
+	private static void copy(BitSet from, BitSet to) {
+		to.clear();
+		to.or(from);
+	}
 	/**
      * @return The security of a given {@link WifiConfiguration}.
      */
-	public abstract String getWifiConfigurationSecurity(WifiConfiguration wifiConfig);
+	public String getWifiConfigurationSecurity(WifiConfiguration wifiConfig) {
+		return toSecurityString(getWifiConfigurationSecurityCode(wifiConfig));
+	}
 	/**
      * @return The security of a given {@link ScanResult}.
      */
-	public abstract String getScanResultSecurity(ScanResult scanResult);
+	public String getScanResultSecurity(ScanResult scanResult) {
+		return toSecurityString(getScanResultSecurityCode(scanResult));
+	}
 	/**
      * Fill in the security fields of WifiConfiguration config.
      * @param config The object to fill.
      * @param security If is OPEN, password is ignored.
      * @param password Password of the network if security is not OPEN.
      */
-	public abstract void setupSecurity(WifiConfiguration config, String security, final String password);
-	public abstract String getDisplaySecirityString(final ScanResult scanResult);
-	public abstract boolean isOpenNetwork(final String security);
-	
+	public void setupSecurity(WifiConfiguration config, String security, final String password) {
+		setupSecurity(config, toSecurityCode(security), password);
+	}
+	public boolean isOpenNetwork(final String security) {
+		return security != null && isOpenNetwork(toSecurityCode(security));
+	}
+
 	public static ConfigurationSecurities newInstance() {
 		if(Version.SDK < 8) {
 			return new ConfigurationSecuritiesOld();
@@ -29,5 +180,5 @@ public abstract class ConfigurationSecurities {
 			return new ConfigurationSecuritiesV8();
 		}
 	}
-	
+
 }
@@ -1,6 +1,5 @@
 package it.this1.wificonnector.iotter.wifi;
 
-import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiConfiguration.AuthAlgorithm;
 import android.net.wifi.WifiConfiguration.GroupCipher;
@@ -27,12 +26,19 @@ public class ConfigurationSecuritiesOld extends ConfigurationSecurities {
     public static final int WEP_PASSWORD_ASCII = 1;
     public static final int WEP_PASSWORD_HEX = 2;
     
-	static final String[] SECURITY_MODES = { WEP, WPA, WPA2, WPA_EAP, IEEE8021X };
+	// Security codes, index of SECURITY_STRINGS
+	static final int SECURITY_OPEN = 0;
+	static final int SECURITY_WEP = 1;
+	static final int SECURITY_WPA = 2;
+	static final int SECURITY_WPA2 = 3;
+	static final int SECURITY_WPA_EAP = 4;
+	static final int SECURITY_IEEE8021X = 5;
+	private static final String[] SECURITY_STRINGS = { OPEN, WEP, WPA, WPA2, WPA_EAP, IEEE8021X };
     
     private static final String TAG = "ConfigurationSecuritiesOld";
 
 	@Override
-	public String getWifiConfigurationSecurity(WifiConfiguration wifiConfig) {
+	int classify(WifiConfiguration wifiConfig) {
 
         if (wifiConfig.allowedKeyManagement.get(KeyMgmt.NONE)) {
             // If we never set group ciphers, wpa_supplicant puts all of them.
@@ -43,92 +49,78 @@ public class ConfigurationSecuritiesOld extends ConfigurationSecurities {
                     && 
                     (wifiConfig.allowedGroupCiphers.get(GroupCipher.WEP40)
                             || wifiConfig.allowedGroupCiphers.get(GroupCipher.WEP104))) {
-                return WEP;
+                return SECURITY_WEP;
             } else {
-                return OPEN;
+                return SECURITY_OPEN;
             }
         } else if (wifiConfig.allowedProtocols.get(Protocol.RSN)) {
-            return WPA2;
+            return SECURITY_WPA2;
         } else if (wifiConfig.allowedKeyManagement.get(KeyMgmt.WPA_EAP)) {
-            return WPA_EAP;
+            return SECURITY_WPA_EAP;
         } else if (wifiConfig.allowedKeyManagement.get(KeyMgmt.IEEE8021X)) {
-            return IEEE8021X;
+            return SECURITY_IEEE8021X;
         } else if (wifiConfig.allowedProtocols.get(Protocol.WPA)) {
-            return WPA;
+            return SECURITY_WPA;
         } else {
             Log.w(TAG, "Unknown security type from WifiConfiguration, falling back on open.");
-            return OPEN;
+            return SECURITY_OPEN;
         }
     }
 
 	@Override
-    public String getScanResultSecurity(ScanResult scanResult) {
-        final String cap = scanResult.capabilities;
-        for (int i = SECURITY_MODES.length - 1; i >= 0; i--) {
-            if (cap.contains(SECURITY_MODES[i])) {
-                return SECURITY_MODES[i];
-            }
+    int classify(int cap) {
+        // strongest mode found wins
+        if ((cap & ScanCapabilities.IEEE8021X) != 0) {
+            return SECURITY_IEEE8021X;
+        } else if ((cap & ScanCapabilities.WPA_EAP) != 0) {
+            return SECURITY_WPA_EAP;
+        } else if ((cap & ScanCapabilities.WPA2) != 0) {
+            return SECURITY_WPA2;
+        } else if ((cap & ScanCapabilities.WPA) != 0) {
+            return SECURITY_WPA;
+        } else if ((cap & ScanCapabilities.WEP) != 0) {
+            return SECURITY_WEP;
         }
         
-        return OPEN;
+        return SECURITY_OPEN;
     }
+
 	@Override
-	public String getDisplaySecirityString(final ScanResult scanResult) {
-		return getScanResultSecurity(scanResult);
+	public String toSecurityString(int security) {
+		if (security >= 0 && security < SECURITY_STRINGS.length) {
+			return SECURITY_STRINGS[security];
+		}
+		return OPEN;
 	}
-	
-	private static boolean isHexWepKey(String wepKey) {
-        final int len = wepKey.length();
-        
-        // WEP-40, WEP-104, and some vendors using 256-bit WEP (WEP-232?)
-        if (len != 10 && len != 26 && len != 58) {
-            return false;
-        }
-        
-        return isHex(wepKey);
-    }
-    
-    private static boolean isHex(String key) {
-        for (int i = key.length() - 1; i >= 0; i--) {
-            final char c = key.charAt(i);
-            if (!(c >= '0' && c <= '9' || c >= 'A' && c <= 'F' || c >= 'a' && c <= 'f')) {
-                return false;
-            }
-        }
-        
-        return true;
-    }
 
+	@Override
+	public int toSecurityCode(String security) {
+		if (TextUtils.isEmpty(security)) {
+			return SECURITY_OPEN;
+		}
+		for (int i = 0; i < SECURITY_STRINGS.length; i++) {
+			if (SECURITY_STRINGS[i].equals(security)) {
+				return i;
+			}
+		}
+		return -1;
+	}
 	@Override
 	public void setupSecurity(WifiConfiguration config, String security, final String password) {
-        config.allowedAuthAlgorithms.clear();
-        config.allowedGroupCiphers.clear();
-        config.allowedKeyManagement.clear();
-        config.allowedPairwiseCiphers.clear();
-        config.allowedProtocols.clear();
-        
-        if (TextUtils.isEmpty(security)) {
-            security = OPEN;
-            Log.w(TAG, "Empty security, assuming open");
-        }
-        
-        if (security.equals(WEP)) {
-        	 int wepPasswordType = WEP_PASSWORD_AUTO;
-            // If password is empty, it should be left untouched
-            if (!TextUtils.isEmpty(password)) {
-				if (wepPasswordType == WEP_PASSWORD_AUTO) {
-                    if (isHexWepKey(password)) {
-                        config.wepKeys[0] = password;
-                    } else {
-                        config.wepKeys[0] = Wifi.convertToQuotedString(password);
-                    }
-                } else {
-                    config.wepKeys[0] = wepPasswordType == WEP_PASSWORD_ASCII
-                            ? Wifi.convertToQuotedString(password)
-                            : password;
-                }
-            }
-            
+		if (TextUtils.isEmpty(security)) {
+			Log.w(TAG, "Empty security, assuming open");
+		}
+		super.setupSecurity(config, security, password);
+	}
+
+	@Override
+	String getDisplaySecirityString(int capabilities, int security) {
+		return toSecurityString(security);
+	}
+	
+	@Override
+	void setupTemplate(WifiConfiguration config, int security) {
+        if (security == SECURITY_WEP) {
             config.wepTxKeyIndex = 0;
             
             config.allowedAuthAlgorithms.set(AuthAlgorithm.OPEN);
@@ -139,7 +131,7 @@ public class ConfigurationSecuritiesOld extends ConfigurationSecurities {
             config.allowedGroupCiphers.set(GroupCipher.WEP40);
             config.allowedGroupCiphers.set(GroupCipher.WEP104);
             
-        } else if (security.equals(WPA) || security.equals(WPA2)){
+        } else if (security == SECURITY_WPA || security == SECURITY_WPA2){
             config.allowedGroupCiphers.set(GroupCipher.TKIP);
             config.allowedGroupCiphers.set(GroupCipher.CCMP);
             
@@ -148,38 +140,40 @@ public class ConfigurationSecuritiesOld extends ConfigurationSecurities {
             config.allowedPairwiseCiphers.set(PairwiseCipher.CCMP);
             config.allowedPairwiseCiphers.set(PairwiseCipher.TKIP);
 
-            config.allowedProtocols.set(security.equals(WPA2) ? Protocol.RSN : Protocol.WPA);
+            config.allowedProtocols.set(security == SECURITY_WPA2 ? Protocol.RSN : Protocol.WPA);
             
-            // If password is empty, it should be left untouched
-            if (!TextUtils.isEmpty(password)) {
-                if (password.length() == 64 && isHex(password)) {
-                    // Goes unquoted as hex
-                    config.preSharedKey = password;
-                } else {
-                    // Goes quoted as ASCII
-                    config.preSharedKey = Wifi.convertToQuotedString(password);
-                }
-            }
-            
-        } else if (security.equals(OPEN)) {
+        } else if (security == SECURITY_OPEN) {
             config.allowedKeyManagement.set(KeyMgmt.NONE);
-        } else if (security.equals(WPA_EAP) || security.equals(IEEE8021X)) {
+        } else if (security == SECURITY_WPA_EAP || security == SECURITY_IEEE8021X) {
             config.allowedGroupCiphers.set(GroupCipher.TKIP);
             config.allowedGroupCiphers.set(GroupCipher.CCMP);
-            if (security.equals(WPA_EAP)) {
+            if (security == SECURITY_WPA_EAP) {
                 config.allowedKeyManagement.set(KeyMgmt.WPA_EAP);
             } else {
                 config.allowedKeyManagement.set(KeyMgmt.IEEE8021X);
             }
-            if (!TextUtils.isEmpty(password)) {
-                config.preSharedKey = Wifi.convertToQuotedString(password);
-            }
         }
     }
 
 	@Override
-	public boolean isOpenNetwork(String security) {
-		return OPEN.equals(security);
+	void setupKey(WifiConfiguration config, int security, final String password) {
+        // If password is empty, it should be left untouched
+        if (TextUtils.isEmpty(password)) {
+            return;
+        }
+        if (security == SECURITY_WEP) {
+            config.wepKeys[0] = WifiKeys.isHexWepKey(password) ? password : Wifi.convertToQuotedString(password);
+        } else if (security == SECURITY_WPA || security == SECURITY_WPA2) {
+            // Goes unquoted as hex, quoted as ASCII
+            config.preSharedKey = WifiKeys.isHexPsk(password) ? password : Wifi.convertToQuotedString(password);
+        } else if (security == SECURITY_WPA_EAP || security == SECURITY_IEEE8021X) {
+            config.preSharedKey = Wifi.convertToQuotedString(password);
+        }
+    }
+
+	@Override
+	public boolean isOpenNetwork(int security) {
+		return security == SECURITY_OPEN;
 	}
 
 }
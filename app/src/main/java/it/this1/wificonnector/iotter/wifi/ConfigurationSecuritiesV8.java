@@ -1,6 +1,5 @@
 package it.this1.wificonnector.iotter.wifi;
 
-import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiConfiguration.AuthAlgorithm;
 import android.net.wifi.WifiConfiguration.KeyMgmt;
@@ -12,13 +11,7 @@ public class ConfigurationSecuritiesV8 extends ConfigurationSecurities {
     static final int SECURITY_WEP = 1;
     static final int SECURITY_PSK = 2;
     static final int SECURITY_EAP = 3;
-    
-    enum PskType {
-        UNKNOWN,
-        WPA,
-        WPA2,
-        WPA_WPA2
-    }
+    private static final String[] SECURITY_STRINGS = { "0", "1", "2", "3" };
     
     private static final String TAG = "ConfigurationSecuritiesV14";
     
@@ -33,37 +26,54 @@ public class ConfigurationSecuritiesV8 extends ConfigurationSecurities {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
-        if (result.capabilities.contains("WEP")) {
+    /**
+     * @param capabilities flags parsed by {@link ScanCapabilities}
+     */
+    private static int getSecurity(int capabilities) {
+        if ((capabilities & ScanCapabilities.WEP) != 0) {
             return SECURITY_WEP;
-        } else if (result.capabilities.contains("PSK")) {
+        } else if ((capabilities & ScanCapabilities.PSK) != 0) {
             return SECURITY_PSK;
-        } else if (result.capabilities.contains("EAP")) {
+        } else if ((capabilities & ScanCapabilities.EAP) != 0) {
             return SECURITY_EAP;
         }
         return SECURITY_NONE;
     }
 
 	@Override
-	public String getWifiConfigurationSecurity(WifiConfiguration wifiConfig) {
-		return String.valueOf(getSecurity(wifiConfig));
+	int classify(WifiConfiguration wifiConfig) {
+		return getSecurity(wifiConfig);
+	}
+
+	@Override
+	int classify(int capabilities) {
+		return getSecurity(capabilities);
+	}
+
+	@Override
+	public String toSecurityString(int security) {
+		if (security >= 0 && security < SECURITY_STRINGS.length) {
+			return SECURITY_STRINGS[security];
+		}
+		return String.valueOf(security);
 	}
 
 	@Override
-	public String getScanResultSecurity(ScanResult scanResult) {
-		return String.valueOf(getSecurity(scanResult));
+	public int toSecurityCode(String security) {
+		if (security == null || security.length() == 0) {
+			return SECURITY_NONE;
+		}
+		if (security.length() == 1) {
+			final int sec = security.charAt(0) - '0';
+			if (sec >= 0 && sec < SECURITY_STRINGS.length) {
+				return sec;
+			}
+		}
+		return -1;
 	}
 
 	@Override
-	public void setupSecurity(WifiConfiguration config, String security, String password) {
-		config.allowedAuthAlgorithms.clear();
-        config.allowedGroupCiphers.clear();
-        config.allowedKeyManagement.clear();
-        config.allowedPairwiseCiphers.clear();
-        config.allowedProtocols.clear();
-        
-        final int sec = security == null ? SECURITY_NONE : Integer.valueOf(security);
-        final int passwordLen = password == null ? 0 : password.length();
+	void setupTemplate(WifiConfiguration config, int sec) {
         switch (sec) {
         case SECURITY_NONE:
             config.allowedKeyManagement.set(KeyMgmt.NONE);
@@ -73,26 +83,10 @@ public class ConfigurationSecuritiesV8 extends ConfigurationSecurities {
             config.allowedKeyManagement.set(KeyMgmt.NONE);
             config.allowedAuthAlgorithms.set(AuthAlgorithm.OPEN);
             config.allowedAuthAlgorithms.set(AuthAlgorithm.SHARED);
-            if (passwordLen != 0) {
-                // WEP-40, WEP-104, and 256-bit WEP (WEP-232?)
-                if ((passwordLen == 10 || passwordLen == 26 || passwordLen == 58) &&
-                        password.matches("[0-9A-Fa-f]*")) {
-                    config.wepKeys[0] = password;
-                } else {
-                    config.wepKeys[0] = '"' + password + '"';
-                }
-            }
             break;
 
         case SECURITY_PSK:
             config.allowedKeyManagement.set(KeyMgmt.WPA_PSK);
-            if (passwordLen != 0) {
-                if (password.matches("[0-9A-Fa-f]{64}")) {
-                    config.preSharedKey = password;
-                } else {
-                    config.preSharedKey = '"' + password + '"';
-                }
-            }
             break;
 
         case SECURITY_EAP:
@@ -129,33 +123,37 @@ public class ConfigurationSecuritiesV8 extends ConfigurationSecurities {
 //    config.linkProperties = new LinkProperties(mLinkProperties);
 		
 	}
-	
-	private static PskType getPskType(ScanResult result) {
-        boolean wpa = result.capabilities.contains("WPA-PSK");
-        boolean wpa2 = result.capabilities.contains("WPA2-PSK");
-        if (wpa2 && wpa) {
-            return PskType.WPA_WPA2;
-        } else if (wpa2) {
-            return PskType.WPA2;
-        } else if (wpa) {
-            return PskType.WPA;
-        } else {
-            Log.w(TAG, "Received abnormal flag string: " + result.capabilities);
-            return PskType.UNKNOWN;
+
+	@Override
+	void setupKey(WifiConfiguration config, int sec, String password) {
+        if (password == null || password.length() == 0) {
+            return;
         }
-    }
+        switch (sec) {
+        case SECURITY_WEP:
+            config.wepKeys[0] = WifiKeys.normalizeWepKey(password);
+            break;
 
+        case SECURITY_PSK:
+            config.preSharedKey = WifiKeys.normalizePsk(password);
+            break;
+
+        default:
+            break;
+        }
+	}
+	
 	@Override
-	public String getDisplaySecirityString(final ScanResult scanResult) {
-		final int security = getSecurity(scanResult);
+	String getDisplaySecirityString(int capabilities, int security) {
 		if(security == SECURITY_PSK) {
-			switch(getPskType(scanResult)) {
+			switch(SecurityDescriptor.getPskType(capabilities)) {
 			case WPA:
 				return "WPA";
 			case WPA_WPA2:
 			case WPA2:
 				return "WPA2";
 			default:
+				Log.w(TAG, "Received abnormal flags: 0x" + Integer.toHexString(capabilities));
 				return "?";
 			}
 		} else {
@@ -173,8 +171,8 @@ public class ConfigurationSecuritiesV8 extends ConfigurationSecurities {
 	}
 
 	@Override
-	public boolean isOpenNetwork(String security) {
-		return String.valueOf(SECURITY_NONE).equals(security);
+	public boolean isOpenNetwork(int security) {
+		return security == SECURITY_NONE;
 	}
 
 }
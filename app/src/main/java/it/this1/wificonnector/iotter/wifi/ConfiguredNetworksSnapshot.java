@@ -0,0 +1,352 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 22/02/17.
+ */
+
+/**
+ * Process wide snapshot of {@link WifiManager#getConfiguredNetworks()}.
+ * Every call of getConfiguredNetworks() is a binder call copying the
+ * whole list, so it is loaded once and indexed by quoted SSID and
+ * security: lookups are O(1) and changes done through {@link Wifi}
+ * are applied to the snapshot instead of loading it again.
+ * Snapshot is dropped when the system broadcasts a change of the
+ * configured networks (see {@link #watch(Context)}), when it is older
+ * than {@link #MAX_AGE}, when a change can not be applied locally and
+ * after every save, as saveConfiguration() can renumber network ids
+ * (see {@link #save(WifiManager)}).
+ * Guarded by the class lock, shared with the static change hooks.
+ */
+class ConfiguredNetworksSnapshot {
+
+    /**
+     * Hidden WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION
+     */
+    static final String CONFIGURED_NETWORKS_CHANGED_ACTION = "android.net.wifi.CONFIGURED_NETWORKS_CHANGE";
+    private static final long MAX_AGE = 30 * 1000;
+    private static final String BSSID_ANY = "any";
+
+    private static ConfiguredNetworksSnapshot current;
+    private static boolean watching;
+    private static int loads;
+
+    private final List<WifiConfiguration> configurations;
+    private final Map<String, List<WifiConfiguration>> index = new HashMap<String, List<WifiConfiguration>>();
+    private final long loadTime;
+    private int maxPriority;
+
+    private ConfiguredNetworksSnapshot(List<WifiConfiguration> configurations) {
+        this.configurations = configurations;
+        this.loadTime = SystemClock.elapsedRealtime();
+        for (WifiConfiguration config : configurations) {
+            index(config);
+        }
+    }
+
+    /**
+     * Current snapshot, loaded if needed.
+     *
+     * @param wifiMgr the wifi manager
+     * @return the snapshot, null if configured networks are not available (i.e. wifi off)
+     */
+    static synchronized ConfiguredNetworksSnapshot get(WifiManager wifiMgr) {
+        if (current != null && SystemClock.elapsedRealtime() - current.loadTime > MAX_AGE) {
+            current = null;
+        }
+        if (current == null) {
+            final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
+            loads++;
+            if (configurations == null) {
+                return null;
+            }
+            current = new ConfiguredNetworksSnapshot(new ArrayList<WifiConfiguration>(configurations));
+        }
+        return current;
+    }
+
+    /**
+     * Drop the snapshot, next {@link #get(WifiManager)} loads it again
+     */
+    static synchronized void invalidate() {
+        current = null;
+    }
+
+    /**
+     * Save configured networks and drop the snapshot: network ids can
+     * be renumbered by the save, next {@link #get(WifiManager)} loads them.
+     *
+     * @param wifiMgr the wifi manager
+     * @return result of {@link WifiManager#saveConfiguration()}
+     */
+    static boolean save(WifiManager wifiMgr) {
+        final boolean saved = wifiMgr.saveConfiguration();
+        invalidate();
+        return saved;
+    }
+
+    /**
+     * Drop the snapshot whenever the system reports a change
+     * of the configured networks. Safe to call more than once.
+     *
+     * @param ctx the context
+     */
+    static synchronized void watch(Context ctx) {
+        if (watching) {
+            return;
+        }
+        watching = true;
+        ctx.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, new IntentFilter(CONFIGURED_NETWORKS_CHANGED_ACTION));
+    }
+
+    /**
+     * @return number of times configured networks were loaded through binder
+     */
+    static synchronized int getLoads() {
+        return loads;
+    }
+
+    /**
+     * A network has been added, index a copy of it: caller keeps
+     * its own object, as the system does with addNetwork().
+     */
+    static synchronized void onAdded(WifiConfiguration config) {
+        if (current != null) {
+            final WifiConfiguration copy = copyOf(config);
+            current.configurations.add(copy);
+            current.index(copy);
+        }
+    }
+
+    /**
+     * A network has been updated (i.e. priority, security), keep index coherent.
+     */
+    static synchronized void onUpdated(WifiConfiguration config) {
+        if (current == null) {
+            return;
+        }
+        final WifiConfiguration old = current.byId(config.networkId);
+        if (old == null) {
+            // not known, can not patch
+            current = null;
+            return;
+        }
+        current.unindex(old);
+        if (old != config) {
+            current.configurations.set(current.configurations.indexOf(old), config);
+        }
+        current.index(config);
+        current.updateMaxPriority();
+    }
+
+    /**
+     * A network has been removed.
+     */
+    static synchronized void onRemoved(int networkId) {
+        if (current == null) {
+            return;
+        }
+        final WifiConfiguration old = current.byId(networkId);
+        if (old != null) {
+            current.configurations.remove(old);
+            current.unindex(old);
+            current.updateMaxPriority();
+        }
+    }
+
+    /**
+     * A network has been enabled, with enableNetwork(networkId, disableOthers).
+     */
+    static synchronized void onEnabled(int networkId, boolean disableOthers) {
+        if (current == null) {
+            return;
+        }
+        for (WifiConfiguration config : current.configurations) {
+            if (config.networkId == networkId) {
+                if (config.status == WifiConfiguration.Status.DISABLED) {
+                    config.status = WifiConfiguration.Status.ENABLED;
+                }
+            } else if (disableOthers) {
+                config.status = WifiConfiguration.Status.DISABLED;
+            }
+        }
+    }
+
+    /**
+     * @param exceptId network id to skip
+     * @return ids of networks not disabled
+     */
+    int[] getEnabledNetworkIds(int exceptId) {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            final int[] ids = new int[configurations.size()];
+            int count = 0;
+            for (WifiConfiguration config : configurations) {
+                if (config.networkId != exceptId && config.status != WifiConfiguration.Status.DISABLED) {
+                    ids[count++] = config.networkId;
+                }
+            }
+            final int[] enabled = new int[count];
+            System.arraycopy(ids, 0, enabled, 0, count);
+            return enabled;
+        }
+    }
+
+    /**
+     * @return a copy of the list of configurations, configurations are shared
+     */
+    List<WifiConfiguration> getAll() {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            return new ArrayList<WifiConfiguration>(configurations);
+        }
+    }
+
+    /**
+     * @return highest priority of configured networks
+     */
+    int getMaxPriority() {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            return maxPriority;
+        }
+    }
+
+    /**
+     * Find a configured network.
+     *
+     * @param quotedSsid SSID with quotes, as in {@link WifiConfiguration#SSID}
+     * @param bssid      BSSID, null matches any
+     * @param security   security as returned by {@link ConfigurationSecurities}
+     * @return the configuration, null if not found
+     */
+    WifiConfiguration find(String quotedSsid, String bssid, String security) {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            final List<WifiConfiguration> candidates = index.get(key(quotedSsid, security));
+            if (candidates == null) {
+                return null;
+            }
+            for (WifiConfiguration config : candidates) {
+                if (config.BSSID == null || BSSID_ANY.equals(config.BSSID) || bssid == null || bssid.equals(config.BSSID)) {
+                    return config;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Find the configured network with highest priority for an SSID,
+     * whatever its security is.
+     *
+     * @param quotedSsid SSID with quotes, as in {@link WifiConfiguration#SSID}
+     * @return the configuration, null if not found
+     */
+    WifiConfiguration find(String quotedSsid) {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            WifiConfiguration found = null;
+            for (WifiConfiguration config : configurations) {
+                if (quotedSsid.equals(config.SSID) && (found == null || config.priority > found.priority)) {
+                    found = config;
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * @return the configured network with networkId, null if not found
+     */
+    WifiConfiguration find(int networkId) {
+        synchronized (ConfiguredNetworksSnapshot.class) {
+            return byId(networkId);
+        }
+    }
+
+    private WifiConfiguration byId(int networkId) {
+        for (WifiConfiguration config : configurations) {
+            if (config.networkId == networkId) {
+                return config;
+            }
+        }
+        return null;
+    }
+
+    private void index(WifiConfiguration config) {
+        if (config.priority > maxPriority) {
+            maxPriority = config.priority;
+        }
+        if (config.SSID == null) {
+            return;
+        }
+        final String key = key(config.SSID, Wifi.ConfigSec.getWifiConfigurationSecurity(config));
+        List<WifiConfiguration> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<WifiConfiguration>(1);
+            index.put(key, list);
+        }
+        list.add(config);
+    }
+
+    private void unindex(WifiConfiguration config) {
+        // security of config may have changed, look in every list
+        for (List<WifiConfiguration> list : index.values()) {
+            if (list.remove(config)) {
+                return;
+            }
+        }
+    }
+
+    private void updateMaxPriority() {
+        maxPriority = 0;
+        for (WifiConfiguration config : configurations) {
+            if (config.priority > maxPriority) {
+                maxPriority = config.priority;
+            }
+        }
+    }
+
+    /**
+     * Copy of a configuration as returned by getConfiguredNetworks():
+     * keys are masked.
+     */
+    private static WifiConfiguration copyOf(WifiConfiguration config) {
+        final WifiConfiguration copy = new WifiConfiguration();
+        copy.networkId = config.networkId;
+        copy.SSID = config.SSID;
+        copy.BSSID = config.BSSID;
+        copy.priority = config.priority;
+        copy.status = config.status;
+        copy.hiddenSSID = config.hiddenSSID;
+        copy.preSharedKey = config.preSharedKey != null ? "*" : null;
+        for (int i = 0; i < config.wepKeys.length; i++) {
+            copy.wepKeys[i] = config.wepKeys[i] != null ? "*" : null;
+        }
+        copy.wepTxKeyIndex = config.wepTxKeyIndex;
+        copy.allowedKeyManagement = (BitSet) config.allowedKeyManagement.clone();
+        copy.allowedProtocols = (BitSet) config.allowedProtocols.clone();
+        copy.allowedAuthAlgorithms = (BitSet) config.allowedAuthAlgorithms.clone();
+        copy.allowedPairwiseCiphers = (BitSet) config.allowedPairwiseCiphers.clone();
+        copy.allowedGroupCiphers = (BitSet) config.allowedGroupCiphers.clone();
+        return copy;
+    }
+
+    private static String key(String quotedSsid, String security) {
+        return quotedSsid + '\u0000' + security;
+    }
+}
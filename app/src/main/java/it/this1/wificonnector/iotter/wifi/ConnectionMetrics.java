@@ -0,0 +1,237 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.net.NetworkInfo;
+
+/**
+ * Created by Vittorio on 20/02/17.
+ */
+
+/**
+ * Phase level latency of {@link WifiConnector} connection attempts.
+ * Every attempt is a sequence of milestones ({@link Phase}) timestamped
+ * with a monotonic clock; the histogram of a phase holds the time
+ * elapsed from the previous milestone reached in the same attempt,
+ * so i.e. {@link Phase#OBTAINING_IP} measures authentication and
+ * {@link Phase#CONNECTED} measures DHCP.
+ * A failed attempt is counted against the first phase not reached.
+ * An attempt connected but not reachable within the probe budget
+ * ends without {@link Phase#REACHABLE}, it is counted apart.
+ */
+public class ConnectionMetrics {
+
+    /**
+     * Milestones of a connection attempt, in order
+     */
+    public enum Phase {
+        /** wifi enabled and receivers registered */
+        ENABLE,
+        /** first scan results received */
+        FIRST_SCAN_RESULT,
+        /** desired SSID found in scan results */
+        SSID_FOUND,
+        /** network added/updated and configuration saved */
+        CONFIGURED,
+        /** association started */
+        ASSOCIATING,
+        /** authentication started */
+        AUTHENTICATING,
+        /** authenticated, DHCP started */
+        OBTAINING_IP,
+        /** network connected */
+        CONNECTED,
+        /** probe target reachable, onConnected fired */
+        REACHABLE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    private final long[] failures = new long[PHASES.length];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private long attempts;
+    private long unreachable;
+
+    // current attempt
+    private boolean running;
+    private long startTime;
+    private long lastMark;
+    private int reached;
+
+    public ConnectionMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start a new attempt, a running one is counted as failed
+     */
+    synchronized void begin() {
+        if (running) {
+            fail();
+        }
+        running = true;
+        attempts++;
+        startTime = lastMark = System.nanoTime();
+        reached = -1;
+    }
+
+    /**
+     * Record a milestone of current attempt.
+     * Each milestone is recorded once, milestones not notified
+     * (i.e. no scan when network is already configured) are skipped.
+     */
+    synchronized void mark(Phase phase) {
+        if (!running || phase.ordinal() <= reached) {
+            return;
+        }
+        final long now = System.nanoTime();
+        histograms[phase.ordinal()].record((now - lastMark) / 1000L);
+        lastMark = now;
+        reached = phase.ordinal();
+        if (phase == Phase.REACHABLE) {
+            total.record((now - startTime) / 1000L);
+            running = false;
+        }
+    }
+
+    /**
+     * Record the milestone matching a network detailed state, if any
+     */
+    void mark(NetworkInfo.DetailedState state) {
+        if (state == null) {
+            return;
+        }
+        switch (state) {
+            case CONNECTING:
+                mark(Phase.ASSOCIATING);
+                break;
+            case AUTHENTICATING:
+                mark(Phase.AUTHENTICATING);
+                break;
+            case OBTAINING_IPADDR:
+                mark(Phase.OBTAINING_IP);
+                break;
+            case CONNECTED:
+                mark(Phase.CONNECTED);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Current attempt connected but probe target was not reachable,
+     * onConnected is fired anyway
+     */
+    synchronized void unreachable() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        unreachable++;
+    }
+
+    /**
+     * Current attempt failed
+     */
+    synchronized void fail() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        failures[Math.min(reached + 1, PHASES.length - 1)]++;
+    }
+
+    /**
+     * @param phase the phase
+     * @return latency histogram of the phase
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * @return histogram of whole attempts, from connect to onConnected
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * @param phase the phase
+     * @return number of attempts failed while waiting this phase
+     */
+    public synchronized long getFailures(Phase phase) {
+        return failures[phase.ordinal()];
+    }
+
+    /**
+     * @return number of attempts connected but not reachable
+     */
+    public synchronized long getUnreachable() {
+        return unreachable;
+    }
+
+    /**
+     * @return number of attempts started
+     */
+    public synchronized long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return networks renumbered to make room for a connect, process wide
+     */
+    public long getPriorityUpdates() {
+        return PriorityAllocator.getUpdates();
+    }
+
+    /**
+     * @return times the top of the priority space was reached, process wide
+     */
+    public long getPriorityRebases() {
+        return PriorityAllocator.getRebases();
+    }
+
+    /**
+     * @return histogram of times connects waited on scan throttling, process wide
+     */
+    public LatencyHistogram getScanThrottleWaits() {
+        return ScanScheduler.getThrottleWaits();
+    }
+
+    /**
+     * @return scan requests refused by the budget or by the system, process wide
+     */
+    public long getScansThrottled() {
+        return ScanScheduler.getThrottled();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+            failures[i] = 0;
+        }
+        total.reset();
+        attempts = 0;
+        unreachable = 0;
+        running = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("attempts:").append(attempts)
+                .append(" unreachable:").append(unreachable)
+                .append(" priority updates:").append(getPriorityUpdates())
+                .append(" rebases:").append(getPriorityRebases())
+                .append("\ntotal ").append(total)
+                .append("\nscan throttled:").append(getScansThrottled())
+                .append(" waits ").append(getScanThrottleWaits());
+        for (Phase phase : PHASES) {
+            sb.append('\n').append(phase).append(' ').append(histograms[phase.ordinal()])
+                    .append(" failures:").append(failures[phase.ordinal()]);
+        }
+        return sb.toString();
+    }
+}
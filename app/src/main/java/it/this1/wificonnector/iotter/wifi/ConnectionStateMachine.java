@@ -0,0 +1,146 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 28/02/17.
+ */
+
+/**
+ * States of a connection attempt of {@link WifiConnector} and the
+ * table of their transitions. Events with no transition in current
+ * state are ignored. Not thread safe, driven by connector looper.
+ */
+final class ConnectionStateMachine {
+
+    enum State {
+        IDLE,
+        /** configured network enabled, waiting for association */
+        FAST_PATH,
+        /** waiting for scan results */
+        SCANNING,
+        /** network configured from scan result, waiting for association */
+        ASSOCIATING,
+        /** connected, waiting for the network to be reachable */
+        PROBING
+    }
+
+    enum Event {
+        KNOWN_NETWORK_ENABLED,
+        SCAN_NEEDED,
+        SSID_FOUND,
+        SSID_NOT_FOUND,
+        /** connected to desired SSID */
+        CONNECTED,
+        /** connected to another SSID */
+        CONNECTED_OTHER,
+        /** any other network state */
+        NETWORK_CHANGED,
+        ASSOCIATION_FAILED,
+        AUTHENTICATION_FAILED,
+        FAST_PATH_TIMEOUT,
+        TIMEOUT,
+        REACHABLE
+    }
+
+    enum Action {
+        WAIT_FAST_PATH,
+        /** enable wifi and look for SSID */
+        SCAN,
+        /** look for SSID again */
+        RESCAN,
+        CONNECT_TO_RESULT,
+        PROBE,
+        REPORT_CONNECTED,
+        REPORT_SSID_NOT_FOUND,
+        REPORT_AUTHENTICATION_ERROR,
+        REPORT_DISCONNECTED,
+        REPORT_TIMEOUT
+    }
+
+    static final class Transition {
+        final State from;
+        final State to;
+        final Action action;
+
+        Transition(State from, State to, Action action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+    }
+
+    private static final Transition[][] TABLE = new Transition[State.values().length][Event.values().length];
+
+    static {
+        on(State.IDLE, Event.KNOWN_NETWORK_ENABLED, State.FAST_PATH, Action.WAIT_FAST_PATH);
+        on(State.IDLE, Event.SCAN_NEEDED, State.SCANNING, Action.SCAN);
+
+        on(State.FAST_PATH, Event.CONNECTED, State.PROBING, Action.PROBE);
+        // CONNECTED_OTHER ignored: still on previous network
+        on(State.FAST_PATH, Event.ASSOCIATION_FAILED, State.SCANNING, Action.SCAN);
+        on(State.FAST_PATH, Event.FAST_PATH_TIMEOUT, State.SCANNING, Action.SCAN);
+        on(State.FAST_PATH, Event.AUTHENTICATION_FAILED, State.IDLE, Action.REPORT_AUTHENTICATION_ERROR);
+        on(State.FAST_PATH, Event.TIMEOUT, State.IDLE, Action.REPORT_TIMEOUT);
+
+        on(State.SCANNING, Event.SSID_FOUND, State.ASSOCIATING, Action.CONNECT_TO_RESULT);
+        on(State.SCANNING, Event.SSID_NOT_FOUND, State.IDLE, Action.REPORT_SSID_NOT_FOUND);
+        on(State.SCANNING, Event.CONNECTED, State.PROBING, Action.PROBE);
+        on(State.SCANNING, Event.CONNECTED_OTHER, State.SCANNING, Action.RESCAN);
+        on(State.SCANNING, Event.NETWORK_CHANGED, State.SCANNING, Action.RESCAN);
+        on(State.SCANNING, Event.TIMEOUT, State.IDLE, Action.REPORT_TIMEOUT);
+
+        on(State.ASSOCIATING, Event.CONNECTED, State.PROBING, Action.PROBE);
+        on(State.ASSOCIATING, Event.CONNECTED_OTHER, State.IDLE, Action.REPORT_DISCONNECTED);
+        on(State.ASSOCIATING, Event.AUTHENTICATION_FAILED, State.IDLE, Action.REPORT_AUTHENTICATION_ERROR);
+        on(State.ASSOCIATING, Event.TIMEOUT, State.IDLE, Action.REPORT_TIMEOUT);
+
+        on(State.PROBING, Event.REACHABLE, State.IDLE, Action.REPORT_CONNECTED);
+    }
+
+    private State state = State.IDLE;
+
+    private static void on(State from, Event event, State to, Action action) {
+        TABLE[from.ordinal()][event.ordinal()] = new Transition(from, to, action);
+    }
+
+    /**
+     * @return transition of event from state, null if event is ignored
+     */
+    static Transition get(State state, Event event) {
+        return TABLE[state.ordinal()][event.ordinal()];
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if event has a transition in current state
+     */
+    boolean handles(Event event) {
+        return get(state, event) != null;
+    }
+
+    /**
+     * Move to the state of the transition of event, if any.
+     *
+     * @return the transition, null if event is ignored
+     */
+    Transition fire(Event event) {
+        final Transition transition = get(state, event);
+        if (transition != null) {
+            state = transition.to;
+        }
+        return transition;
+    }
+
+    /**
+     * Abandon current attempt
+     *
+     * @return the state left
+     */
+    State reset() {
+        final State left = state;
+        state = State.IDLE;
+        return left;
+    }
+}
@@ -0,0 +1,125 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 28/02/17.
+ */
+
+/**
+ * Process wide negative cache of connection attempts that failed
+ * recently, so retrying the same SSID and password reports the
+ * failure at once instead of scanning and associating again.
+ * Authentication failures are keyed by SSID and a salted hash of the
+ * password (see {@link PskCache#id(String, String)}), SSID not found
+ * by SSID only and kept for a shorter time: the AP may be powering on.
+ */
+final class FailureCache {
+
+    enum Failure {
+        AUTHENTICATION,
+        SSID_NOT_FOUND
+    }
+
+    static final long AUTHENTICATION_TTL = 60 * 1000;
+    static final long SSID_NOT_FOUND_TTL = 10 * 1000;
+    private static final int MAX_ENTRIES = 32;
+
+    // key to expiry time
+    private static final Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static long hits;
+
+    private FailureCache() {
+    }
+
+    /**
+     * Record a failed attempt
+     */
+    static void record(Failure failure, String ssid, String password) {
+        record(failure, ssid, password, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return failure of a recent attempt with same SSID and password, null if none
+     */
+    static Failure find(String ssid, String password) {
+        return find(ssid, password, SystemClock.elapsedRealtime());
+    }
+
+    static void record(Failure failure, String ssid, String password, long now) {
+        final String key = failure == Failure.AUTHENTICATION ? authenticationKey(ssid, password) : ssidKey(ssid);
+        final long ttl = failure == Failure.AUTHENTICATION ? AUTHENTICATION_TTL : SSID_NOT_FOUND_TTL;
+        synchronized (entries) {
+            entries.put(key, now + ttl);
+        }
+    }
+
+    static Failure find(String ssid, String password, long now) {
+        final String authenticationKey = authenticationKey(ssid, password);
+        synchronized (entries) {
+            if (isValid(authenticationKey, now)) {
+                hits++;
+                return Failure.AUTHENTICATION;
+            }
+            if (isValid(ssidKey(ssid), now)) {
+                hits++;
+                return Failure.SSID_NOT_FOUND;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forget failures of an SSID and password, i.e. connected or retry forced
+     */
+    static void forget(String ssid, String password) {
+        final String authenticationKey = authenticationKey(ssid, password);
+        synchronized (entries) {
+            entries.remove(authenticationKey);
+            entries.remove(ssidKey(ssid));
+        }
+    }
+
+    /**
+     * @return number of attempts answered from cache
+     */
+    static long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    static void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static boolean isValid(String key, long now) {
+        final Long expiry = entries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (now >= expiry) {
+            entries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static String authenticationKey(String ssid, String password) {
+        return "a:" + PskCache.id(ssid, password);
+    }
+
+    private static String ssidKey(String ssid) {
+        return "s:" + ssid;
+    }
+}
@@ -0,0 +1,134 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 20/02/17.
+ */
+
+/**
+ * Fixed memory latency histogram with log-linear buckets, in the
+ * spirit of HdrHistogram: every power of two is split in
+ * {@link #SUB_BUCKETS} linear buckets, so values are kept with about
+ * 6% precision from 1 us up to hours with less than 1000 counters.
+ * Thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int MAX_EXPONENT = 42;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Record a value
+     *
+     * @param micros latency in microseconds
+     */
+    public synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts[index(micros)]++;
+        count++;
+        sum += micros;
+        if (micros < min) min = micros;
+        if (micros > max) max = micros;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return min value in microseconds, 0 if empty
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return max value in microseconds
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean value in microseconds
+     */
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Value at a percentile, i.e. 50 for median.
+     * Value is the upper bound of the bucket, never more than max.
+     *
+     * @param percentile 0..100
+     * @return value in microseconds, 0 if empty
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * count);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                // last bucket also holds overflows, its bound means nothing
+                return i == BUCKETS - 1 ? max : Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return bucket of a value, values above 2^(MAX_EXPONENT+1) share the last one
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) ((value >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return highest value of a bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count:%d p50:%dms p95:%dms p99:%dms max:%dms",
+                count, getValueAtPercentile(50) / 1000, getValueAtPercentile(95) / 1000,
+                getValueAtPercentile(99) / 1000, max / 1000);
+    }
+}
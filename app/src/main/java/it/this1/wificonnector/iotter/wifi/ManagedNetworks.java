@@ -0,0 +1,149 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Created by Vittorio on 28/02/17.
+ */
+
+/**
+ * Registry of the networks configured by this library, with the
+ * time they were last used, kept in {@link SharedPreferences}.
+ * Networks are identified by quoted SSID and security, network ids
+ * are not stable across reboots.
+ * The janitor ({@link #cleanUp(Context, WifiManager, long)}) removes
+ * the ones not used for a while, so provisioning many devices does
+ * not grow the configured networks list forever. Networks configured
+ * by user or other apps are never touched.
+ */
+class ManagedNetworks {
+
+    private static final String TAG = "ManagedNetworks";
+    private static final String PREFS = "iotter_managed_networks";
+    private static final String NETWORK_PREFIX = "n:";
+    private static final String LAST_CLEANUP = "last_cleanup";
+    static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    private static final long CLEANUP_INTERVAL = 24L * 60 * 60 * 1000;
+
+    /**
+     * Record a network as configured by us and used now
+     */
+    static void touch(Context ctx, String quotedSsid, String security) {
+        touch(prefs(ctx), quotedSsid, security, System.currentTimeMillis());
+    }
+
+    static void touch(SharedPreferences prefs, String quotedSsid, String security, long now) {
+        prefs.edit().putLong(key(quotedSsid, security), now).apply();
+    }
+
+    /**
+     * Record that a network has been used now, if it is one of ours
+     */
+    static void touchIfManaged(Context ctx, String quotedSsid, String security) {
+        touchIfManaged(prefs(ctx), quotedSsid, security, System.currentTimeMillis());
+    }
+
+    static void touchIfManaged(SharedPreferences prefs, String quotedSsid, String security, long now) {
+        final String key = key(quotedSsid, security);
+        if (prefs.contains(key)) {
+            prefs.edit().putLong(key, now).apply();
+        }
+    }
+
+    /**
+     * @return true if network has been configured by us
+     */
+    static boolean isManaged(Context ctx, String quotedSsid, String security) {
+        return isManaged(prefs(ctx), quotedSsid, security);
+    }
+
+    static boolean isManaged(SharedPreferences prefs, String quotedSsid, String security) {
+        return prefs.contains(key(quotedSsid, security));
+    }
+
+    /**
+     * @return true if janitor has not run for a day
+     */
+    static boolean isCleanUpDue(Context ctx) {
+        return isCleanUpDue(prefs(ctx), System.currentTimeMillis());
+    }
+
+    static boolean isCleanUpDue(SharedPreferences prefs, long now) {
+        return now - prefs.getLong(LAST_CLEANUP, 0) > CLEANUP_INTERVAL;
+    }
+
+    /**
+     * @param lastUse time network was last used, -1 if not ours
+     * @return true if network is ours and has not been used for maxAge
+     */
+    static boolean isStale(long lastUse, long now, long maxAge) {
+        return lastUse >= 0 && now - lastUse > maxAge;
+    }
+
+    /**
+     * Remove networks configured by us and not used for maxAge,
+     * except the current one. Blocking, must not be called on main thread.
+     *
+     * @return number of networks removed
+     */
+    static int cleanUp(Context ctx, WifiManager wifiMgr, long maxAge) {
+        final SharedPreferences prefs = prefs(ctx);
+        final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+        if (snapshot == null) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        final WifiInfo info = wifiMgr.getConnectionInfo();
+        final int currentId = info == null ? -1 : info.getNetworkId();
+        final SharedPreferences.Editor editor = prefs.edit();
+        final Set<String> configured = new HashSet<String>();
+        int removed = 0;
+        for (WifiConfiguration config : snapshot.getAll().toArray(new WifiConfiguration[0])) {
+            if (config.SSID == null) {
+                continue;
+            }
+            final String key = key(config.SSID, Wifi.ConfigSec.getWifiConfigurationSecurity(config));
+            final long lastUse = prefs.getLong(key, -1);
+            if (lastUse < 0) {
+                // not ours
+                continue;
+            }
+            if (!isStale(lastUse, now, maxAge) || config.networkId == currentId
+                    || !wifiMgr.removeNetwork(config.networkId)) {
+                configured.add(key);
+                continue;
+            }
+            ConfiguredNetworksSnapshot.onRemoved(config.networkId);
+            editor.remove(key);
+            removed++;
+            Log.d(TAG, "removed stale network " + config.SSID);
+        }
+        // forget entries of networks removed by user
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(NETWORK_PREFIX) && !configured.contains(key)) {
+                editor.remove(key);
+            }
+        }
+        editor.putLong(LAST_CLEANUP, now).apply();
+        if (removed > 0) {
+            ConfiguredNetworksSnapshot.save(wifiMgr);
+        }
+        return removed;
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return ctx.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    private static String key(String quotedSsid, String security) {
+        return NETWORK_PREFIX + security + ':' + quotedSsid;
+    }
+}
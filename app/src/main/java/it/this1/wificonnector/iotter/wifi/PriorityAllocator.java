@@ -0,0 +1,164 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by Vittorio on 23/02/17.
+ */
+
+/**
+ * Allocate the highest priority to the network being connected.
+ * Priority space is tracked by {@link ConfiguredNetworksSnapshot}:
+ * usually the new priority is max + 1 and nothing else changes.
+ * When {@link #MAX_PRIORITY} is reached only the top run of networks,
+ * the ones above MAX_PRIORITY - HEADROOM, is renumbered downward (order
+ * and ties kept), so next HEADROOM connects are again free; if the
+ * run does not fit above 0 every network is renumbered from 0.
+ * Changes are not saved, caller saves configuration once.
+ */
+class PriorityAllocator {
+
+    static final int MAX_PRIORITY = 99999;
+    private static final int HEADROOM = 1000;
+
+    private static long updates;
+    private static long rebases;
+
+    private static final Comparator<WifiConfiguration> BY_PRIORITY_DESC = new Comparator<WifiConfiguration>() {
+        @Override
+        public int compare(WifiConfiguration lhs, WifiConfiguration rhs) {
+            return rhs.priority < lhs.priority ? -1 : (rhs.priority == lhs.priority ? 0 : 1);
+        }
+    };
+
+    /**
+     * Allocate the highest priority for target.
+     * Target priority is not changed, other networks may be updated.
+     *
+     * @param wifiMgr the wifi manager
+     * @param target  the network that must get the highest priority
+     * @return priority to set to target, -1 if configured networks are not available
+     */
+    static int allocate(WifiManager wifiMgr, WifiConfiguration target) {
+        final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+        if (snapshot == null) {
+            return -1;
+        }
+        final List<WifiConfiguration> all = snapshot.getAll();
+        final List<WifiConfiguration> others = new ArrayList<WifiConfiguration>(all.size());
+        int max = 0;
+        for (WifiConfiguration config : all) {
+            if (config.networkId == target.networkId) {
+                continue;
+            }
+            others.add(config);
+            if (config.priority > max) {
+                max = config.priority;
+            }
+        }
+        if (max < MAX_PRIORITY) {
+            return max + 1;
+        }
+        return rebase(wifiMgr, others);
+    }
+
+    /**
+     * Renumber the networks above MAX_PRIORITY - HEADROOM
+     *
+     * @return priority for target
+     */
+    private static int rebase(WifiManager wifiMgr, List<WifiConfiguration> others) {
+        Collections.sort(others, BY_PRIORITY_DESC);
+        final int[] priorities = new int[others.size()];
+        for (int i = 0; i < priorities.length; i++) {
+            priorities[i] = others.get(i).priority;
+        }
+        final int[] assigned = renumber(priorities, MAX_PRIORITY - HEADROOM);
+        int count = 0;
+        for (int i = 0; i < assigned.length; i++) {
+            if (assigned[i] == priorities[i]) {
+                continue;
+            }
+            final WifiConfiguration config = others.get(i);
+            config.priority = assigned[i];
+            if (wifiMgr.updateNetwork(config) != -1) {
+                ConfiguredNetworksSnapshot.onUpdated(config);
+            } else {
+                config.priority = priorities[i];
+                ConfiguredNetworksSnapshot.invalidate();
+            }
+            count++;
+        }
+        synchronized (PriorityAllocator.class) {
+            updates += count;
+            rebases++;
+        }
+        return assigned.length > 0 ? assigned[0] + 1 : 0;
+    }
+
+    /**
+     * New priorities for networks sorted by descending priority, so that
+     * all of them are below top. Order and ties are kept: the top run is
+     * moved just below top, networks already below the run are not changed.
+     * If the run would go below 0 every network is renumbered from 0.
+     *
+     * @param priorities priorities in descending order
+     * @param top        priority that must be left free
+     * @return the new priorities, same order
+     */
+    static int[] renumber(int[] priorities, int top) {
+        final int[] assigned = priorities.clone();
+        int allowed = top - 1;
+        for (int i = 0; i < priorities.length; i++) {
+            if (priorities[i] <= allowed) {
+                // this and next ones are already below renumbered run
+                break;
+            }
+            if (i > 0 && priorities[i] == priorities[i - 1]) {
+                assigned[i] = assigned[i - 1];
+                continue;
+            }
+            if (allowed < 0) {
+                return compact(priorities);
+            }
+            assigned[i] = allowed--;
+        }
+        return assigned;
+    }
+
+    /**
+     * @return priorities renumbered from 0 upward, order and ties kept
+     */
+    private static int[] compact(int[] priorities) {
+        final int[] assigned = new int[priorities.length];
+        int next = 0;
+        for (int i = priorities.length - 1; i >= 0; i--) {
+            if (i < priorities.length - 1 && priorities[i] == priorities[i + 1]) {
+                assigned[i] = assigned[i + 1];
+            } else {
+                assigned[i] = next++;
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * @return number of networks updated to make room
+     */
+    static synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * @return number of times MAX_PRIORITY was reached
+     */
+    static synchronized long getRebases() {
+        return rebases;
+    }
+}
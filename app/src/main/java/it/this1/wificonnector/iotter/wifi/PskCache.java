@@ -0,0 +1,214 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Created by Vittorio on 27/02/17.
+ */
+
+/**
+ * WPA pre-shared key derivation, PSK = PBKDF2-HMAC-SHA1(passphrase, SSID, 4096, 32),
+ * as done by supplicant on every association with an ASCII passphrase.
+ * Keys are derived once on a background thread and kept in a bounded
+ * LRU keyed by a salted hash of (SSID, passphrase), so a network can be
+ * configured with the 64 hex digit key instead of the passphrase.
+ * Salt is random per process: keys of the map are useless outside it.
+ */
+final class PskCache {
+
+    static final int ITERATIONS = 4096;
+    static final int KEY_LENGTH = 32;
+    private static final int MAX_ENTRIES = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte[] salt = new byte[16];
+    private static final Map<String, String> keys = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static ExecutorService executor;
+    private static long hits;
+    private static long derivations;
+
+    static {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    private PskCache() {
+    }
+
+    /**
+     * @param ssid       SSID without quotes
+     * @param passphrase ASCII passphrase
+     * @return derived key as 64 hex digits, null if not derived yet
+     */
+    static String get(String ssid, String passphrase) {
+        if (!isPassphrase(passphrase)) {
+            return null;
+        }
+        final String id = id(ssid, passphrase);
+        synchronized (keys) {
+            final String key = keys.get(id);
+            if (key != null) {
+                hits++;
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Derive key on a background thread if not cached yet.
+     *
+     * @param ssid       SSID without quotes
+     * @param passphrase ASCII passphrase, ignored if not 8..63 chars
+     */
+    static void prefetch(final String ssid, final String passphrase) {
+        if (!isPassphrase(passphrase) || get(ssid, passphrase) != null) {
+            return;
+        }
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                getOrDerive(ssid, passphrase);
+            }
+        });
+    }
+
+    /**
+     * Cached key or derive it, blocking. Must not be called on main thread.
+     *
+     * @return derived key as 64 hex digits, null if passphrase is not valid
+     */
+    static String getOrDerive(String ssid, String passphrase) {
+        String key = get(ssid, passphrase);
+        if (key != null || !isPassphrase(passphrase)) {
+            return key;
+        }
+        key = toHex(derive(passphrase, ssid));
+        synchronized (keys) {
+            keys.put(id(ssid, passphrase), key);
+            derivations++;
+        }
+        return key;
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA1(passphrase, ssid, 4096, 32)
+     *
+     * @param passphrase ASCII passphrase
+     * @param ssid       SSID without quotes
+     * @return 32 bytes key
+     */
+    static byte[] derive(String passphrase, String ssid) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(passphrase.getBytes("UTF-8"), "HmacSHA1"));
+            final byte[] s = ssid.getBytes("UTF-8");
+            final byte[] key = new byte[KEY_LENGTH];
+            final byte[] u = new byte[mac.getMacLength()];
+            final byte[] t = new byte[u.length];
+            int offset = 0;
+            for (int block = 1; offset < KEY_LENGTH; block++) {
+                // U1 = HMAC(P, S || INT(block))
+                mac.update(s);
+                mac.update((byte) (block >>> 24));
+                mac.update((byte) (block >>> 16));
+                mac.update((byte) (block >>> 8));
+                mac.update((byte) block);
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, t, 0, u.length);
+                for (int i = 1; i < ITERATIONS; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+                    for (int j = 0; j < t.length; j++) {
+                        t[j] ^= u[j];
+                    }
+                }
+                final int n = Math.min(t.length, KEY_LENGTH - offset);
+                System.arraycopy(t, 0, key, offset, n);
+                offset += n;
+            }
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    static long getHits() {
+        synchronized (keys) {
+            return hits;
+        }
+    }
+
+    static long getDerivations() {
+        synchronized (keys) {
+            return derivations;
+        }
+    }
+
+    /**
+     * Only ASCII passphrases of 8..63 chars are derived,
+     * 64 hex digits keys are already derived.
+     */
+    private static boolean isPassphrase(String passphrase) {
+        return passphrase != null && passphrase.length() >= 8 && passphrase.length() <= 63
+                && WifiKeys.isValidPsk(passphrase);
+    }
+
+    /**
+     * SHA-256(salt || SSID || 0 || passphrase), meaningful only in this process
+     */
+    static String id(String ssid, String passphrase) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(ssid.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(passphrase.getBytes("UTF-8"));
+            return toHex(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PskCache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,144 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Created by Vittorio on 18/02/17.
+ */
+
+/**
+ * Detects when a just associated network is really usable:
+ * interface must have an IPv4 address and target host must
+ * accept a TCP connection. Checks are retried with short,
+ * capped delays until a time budget elapses.
+ * Methods block, they must not be called on main thread.
+ */
+public class ReachabilityProbe {
+
+    /**
+     * Default target, the Iotter device web server.
+     */
+    public static final String DEFAULT_HOST = "192.168.4.1";
+    public static final int DEFAULT_PORT = 80;
+    public static final long DEFAULT_BUDGET = 5000;
+
+    private static final int CONNECT_TO = 300;
+    private static final long FIRST_BACKOFF = 25;
+    private static final long MAX_BACKOFF = 400;
+
+    /**
+     * Tell if interface is ready to be probed (i.e. it has an IP address)
+     */
+    public interface Readiness {
+        public boolean isReady();
+    }
+
+    private final String host;
+    private final int port;
+    private final long budget;
+    private volatile boolean cancelled;
+    private int attempts;
+
+    /**
+     * Instantiates a new probe.
+     *
+     * @param host   host to connect to
+     * @param port   TCP port to connect to
+     * @param budget max time in ms to wait for reachability
+     */
+    public ReachabilityProbe(String host, int port, long budget) {
+        this.host = host;
+        this.port = port;
+        this.budget = budget;
+    }
+
+    /**
+     * Wait until target is reachable.
+     *
+     * @param readiness checked before every connection attempt, can be null
+     * @return true if target accepted a connection within budget
+     */
+    public boolean await(Readiness readiness) {
+        final long deadline = System.nanoTime() + budget * 1000000L;
+        long backoff = FIRST_BACKOFF;
+        attempts = 0;
+        while (!cancelled) {
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return false;
+            }
+            if (readiness == null || readiness.isReady()) {
+                attempts++;
+                if (connect((int) Math.min(CONNECT_TO, remaining))) {
+                    return true;
+                }
+                remaining = (deadline - System.nanoTime()) / 1000000L;
+            }
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(backoff, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+        return false;
+    }
+
+    /**
+     * Stop waiting, {@link #await(Readiness)} returns false
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return number of connection attempts of last {@link #await(Readiness)}
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private boolean connect(int timeout) {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            return true;
+        } catch (IOException e) {
+            // ENETUNREACH, ECONNREFUSED or timeout: not ready yet
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Format an IPv4 address as returned by {@link android.net.wifi.WifiInfo#getIpAddress()}
+     * or {@link android.net.DhcpInfo} (little endian int).
+     *
+     * @param address the address
+     * @return dotted address
+     */
+    public static String formatIpAddress(int address) {
+        return (address & 0xff) + "." + ((address >> 8) & 0xff) + "."
+                + ((address >> 16) & 0xff) + "." + ((address >>> 24) & 0xff);
+    }
+}
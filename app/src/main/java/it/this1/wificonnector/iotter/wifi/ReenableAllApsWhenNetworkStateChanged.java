@@ -25,78 +25,128 @@
 
 package it.this1.wificonnector.iotter.wifi;
 
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
-import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.NetworkInfo;
-import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
-import android.os.IBinder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
+/**
+ * enableNetwork(id, true) disables every other network to force the
+ * connection: the ones it is going to disable are recorded and only
+ * those are enabled again, in one batch on a background thread, as
+ * soon as the network state changes.
+ */
 public class ReenableAllApsWhenNetworkStateChanged {
-	public static void schedule(final Context ctx) {
-		ctx.startService(new Intent(ctx, BackgroundService.class));
-	}
-	
-	private static void reenableAllAps(final Context ctx) {
-		final WifiManager wifiMgr = (WifiManager)ctx.getSystemService(Context.WIFI_SERVICE);
-		final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
-		if(configurations != null) {
-			for(final WifiConfiguration config:configurations) {
-				wifiMgr.enableNetwork(config.networkId, false);
+
+	private static final Set<Integer> sPending = new LinkedHashSet<Integer>();
+	private static HandlerThread sThread;
+	private static Handler sHandler;
+	private static boolean sRegistered;
+	private static long sEnableCalls;
+	private static long sEnableCallsSaved;
+
+	/**
+	 * Schedule the re-enable of the networks that enableNetwork(networkId, true)
+	 * is going to disable. Must be called before it.
+	 * @param ctx
+	 * @param wifiMgr
+	 * @param networkId network being enabled
+	 */
+	public static void schedule(final Context ctx, final WifiManager wifiMgr, final int networkId) {
+		final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+		if(snapshot == null) {
+			return;
+		}
+		final int[] enabled = snapshot.getEnabledNetworkIds(networkId);
+		synchronized (ReenableAllApsWhenNetworkStateChanged.class) {
+			// a re-enable of every other network would cost one call each
+			sEnableCallsSaved += snapshot.getAll().size() - 1 - enabled.length;
+			if(enabled.length == 0) {
+				return;
+			}
+			for(int id : enabled) {
+				sPending.add(id);
+			}
+			if(sRegistered) {
+				return;
+			}
+			sRegistered = true;
+			if(sThread == null) {
+				sThread = new HandlerThread("ReenableAps", Process.THREAD_PRIORITY_BACKGROUND);
+				sThread.start();
+				sHandler = new Handler(sThread.getLooper());
 			}
 		}
+		ctx.getApplicationContext().registerReceiver(new Receiver(wifiMgr),
+				new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION), null, sHandler);
 	}
-	
-	public static class BackgroundService extends Service {
 
-		private boolean mReenabled;
-		
-		private BroadcastReceiver mReceiver = new BroadcastReceiver() {
-			
-			@Override
-			public void onReceive(Context context, Intent intent) {
-				final String action = intent.getAction();
-				if(WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
-					final NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
-					final NetworkInfo.DetailedState detailed = networkInfo.getDetailedState();
-					if(detailed != NetworkInfo.DetailedState.DISCONNECTED
-							&& detailed != NetworkInfo.DetailedState.DISCONNECTING
-							&& detailed != NetworkInfo.DetailedState.SCANNING) {
-						if(!mReenabled) {
-							mReenabled = true;
-							reenableAllAps(context);
-							stopSelf();
-						}
-					}
-				}
+	/**
+	 * @return number of enableNetwork calls done to re-enable networks
+	 */
+	public static synchronized long getEnableCalls() {
+		return sEnableCalls;
+	}
+
+	/**
+	 * @return number of enableNetwork calls saved re-enabling only disabled networks
+	 */
+	public static synchronized long getEnableCallsSaved() {
+		return sEnableCallsSaved;
+	}
+
+	private static void reenable(final WifiManager wifiMgr) {
+		final Integer[] ids;
+		synchronized (ReenableAllApsWhenNetworkStateChanged.class) {
+			ids = sPending.toArray(new Integer[sPending.size()]);
+			sPending.clear();
+			sRegistered = false;
+			sEnableCalls += ids.length;
+		}
+		for(final Integer id : ids) {
+			if(wifiMgr.enableNetwork(id, false)) {
+				ConfiguredNetworksSnapshot.onEnabled(id, false);
 			}
-		};
-		
-		private IntentFilter mIntentFilter;
-		
-		@Override
-		public IBinder onBind(Intent intent) {
-			return null; // We need not bind to it at all.
 		}
-		
-		@Override
-		public void onCreate() {
-			super.onCreate();
-			mReenabled = false;
-			mIntentFilter = new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-			registerReceiver(mReceiver, mIntentFilter);
+	}
+
+	private static class Receiver extends BroadcastReceiver {
+
+		private final WifiManager mWifiMgr;
+
+		Receiver(WifiManager wifiMgr) {
+			mWifiMgr = wifiMgr;
 		}
-		
+
 		@Override
-		public void onDestroy() {
-			super.onDestroy();
-			unregisterReceiver(mReceiver);
+		public void onReceive(Context context, Intent intent) {
+			// runs on background thread
+			if(isInitialStickyBroadcast()) {
+				// state before the switch
+				return;
+			}
+			final String action = intent.getAction();
+			if(WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+				final NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+				if(networkInfo == null) {
+					return;
+				}
+				final NetworkInfo.DetailedState detailed = networkInfo.getDetailedState();
+				if(detailed != NetworkInfo.DetailedState.DISCONNECTED
+						&& detailed != NetworkInfo.DetailedState.DISCONNECTING
+						&& detailed != NetworkInfo.DetailedState.SCANNING) {
+					context.unregisterReceiver(this);
+					reenable(mWifiMgr);
+				}
+			}
 		}
-
 	}
 }
@@ -0,0 +1,124 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 25/02/17.
+ */
+
+/**
+ * Single pass parser of {@link android.net.wifi.ScanResult#capabilities},
+ * i.e. "[WPA-PSK-CCMP+TKIP][WPA2-PSK-CCMP+TKIP][ESS]", to a bitmask.
+ * Words are matched in place, nothing is allocated.
+ * First word of a bracket group is the protocol (WPA, WPA2 or RSN,
+ * the latter reported as WPA2), so i.e. PSK in a WPA2 group sets
+ * both {@link #PSK} and {@link #WPA2_PSK}.
+ */
+final class ScanCapabilities {
+
+    static final int WEP = 1;
+    static final int WPA = 1 << 1;
+    static final int WPA2 = 1 << 2;
+    static final int PSK = 1 << 3;
+    static final int EAP = 1 << 4;
+    static final int SAE = 1 << 5;
+    static final int OWE = 1 << 6;
+    static final int CCMP = 1 << 7;
+    static final int TKIP = 1 << 8;
+    static final int IEEE8021X = 1 << 9;
+    /** PSK in a WPA group */
+    static final int WPA_PSK = 1 << 10;
+    /** PSK in a WPA2/RSN group */
+    static final int WPA2_PSK = 1 << 11;
+    /** EAP in a WPA group */
+    static final int WPA_EAP = 1 << 12;
+
+    private ScanCapabilities() {
+    }
+
+    /**
+     * @param capabilities capabilities of a scan result, can be null
+     * @return bitmask of flags found
+     */
+    static int parse(String capabilities) {
+        if (capabilities == null) {
+            return 0;
+        }
+        final int len = capabilities.length();
+        int flags = 0;
+        int protocol = 0;
+        int i = 0;
+        while (i < len) {
+            final char c = capabilities.charAt(i);
+            if (c == '[') {
+                protocol = 0;
+                i++;
+                continue;
+            }
+            if (!isWordChar(c)) {
+                i++;
+                continue;
+            }
+            final int start = i;
+            while (i < len && isWordChar(capabilities.charAt(i))) {
+                i++;
+            }
+            final int word = word(capabilities, start, i - start);
+            switch (word) {
+                case WPA:
+                case WPA2:
+                    if (protocol == 0) {
+                        protocol = word;
+                    }
+                    flags |= word;
+                    break;
+                case PSK:
+                    flags |= PSK;
+                    if (protocol == WPA) {
+                        flags |= WPA_PSK;
+                    } else if (protocol == WPA2) {
+                        flags |= WPA2_PSK;
+                    }
+                    break;
+                case EAP:
+                    flags |= EAP;
+                    if (protocol == WPA) {
+                        flags |= WPA_EAP;
+                    }
+                    break;
+                default:
+                    flags |= word;
+                    break;
+            }
+        }
+        return flags;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c >= 'a' && c <= 'z';
+    }
+
+    /**
+     * @return flag of a word, WPA2 for RSN, 0 if not relevant
+     */
+    private static int word(String s, int start, int len) {
+        switch (len) {
+            case 3:
+                if (s.regionMatches(start, "WPA", 0, 3)) return WPA;
+                if (s.regionMatches(start, "PSK", 0, 3)) return PSK;
+                if (s.regionMatches(start, "EAP", 0, 3)) return EAP;
+                if (s.regionMatches(start, "RSN", 0, 3)) return WPA2;
+                if (s.regionMatches(start, "WEP", 0, 3)) return WEP;
+                if (s.regionMatches(start, "SAE", 0, 3)) return SAE;
+                if (s.regionMatches(start, "OWE", 0, 3)) return OWE;
+                return 0;
+            case 4:
+                if (s.regionMatches(start, "WPA2", 0, 4)) return WPA2;
+                if (s.regionMatches(start, "CCMP", 0, 4)) return CCMP;
+                if (s.regionMatches(start, "TKIP", 0, 4)) return TKIP;
+                return 0;
+            case 9:
+                return s.regionMatches(start, "IEEE8021X", 0, 9) ? IEEE8021X : 0;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 24/02/17.
+ */
+
+/**
+ * Process wide cache of scan results with their age.
+ * Age comes from {@link ScanResult#timestamp} (microseconds since boot)
+ * on API 17+, from the time the result was first received otherwise.
+ * Results of scans started by the system or by other apps are
+ * reused too, so a connect can skip its own scan when the target
+ * has been seen recently.
+ */
+class ScanResultCache {
+
+    /**
+     * Default freshness window in ms
+     */
+    static final long DEFAULT_MAX_AGE = 15 * 1000;
+    /**
+     * Results older than this are dropped
+     */
+    static final long MAX_KEEP = 5 * 60 * 1000;
+
+    private static class Entry {
+        final ScanResult result;
+        final long seenAt;
+
+        Entry(ScanResult result, long seenAt) {
+            this.result = result;
+            this.seenAt = seenAt;
+        }
+    }
+
+    // by BSSID
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private static long hits;
+    private static long misses;
+
+    /**
+     * Record results of a scan
+     *
+     * @param results as returned by {@link WifiManager#getScanResults()}, can be null
+     */
+    static synchronized void update(List<ScanResult> results) {
+        final long now = SystemClock.elapsedRealtime();
+        if (results != null) {
+            for (ScanResult result : results) {
+                if (result.BSSID == null || result.SSID == null) {
+                    continue;
+                }
+                final Entry old = entries.get(result.BSSID);
+                long seenAt;
+                if (Version.SDK >= 17) {
+                    seenAt = result.timestamp > 0 ? result.timestamp / 1000 : now;
+                } else if (old != null && isSameSighting(old.result, result)) {
+                    // no timestamp before API 17, same result read again is not newer
+                    seenAt = old.seenAt;
+                } else {
+                    seenAt = now;
+                }
+                if (old == null || seenAt >= old.seenAt) {
+                    entries.put(result.BSSID, new Entry(result, seenAt));
+                }
+            }
+        }
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().seenAt > MAX_KEEP) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Without timestamps a result read again from the system looks
+     * like the previous one: same SSID, signal level and frequency.
+     */
+    private static boolean isSameSighting(ScanResult old, ScanResult result) {
+        return old.level == result.level && old.frequency == result.frequency
+                && old.SSID.equals(result.SSID);
+    }
+
+    /**
+     * Find a result for an SSID seen within maxAge.
+     * Cache is refreshed with the results already held by the system,
+     * no scan is started.
+     *
+     * @param wifiMgr the wifi manager
+     * @param ssid    SSID without quotes
+     * @param maxAge  freshness window in ms
+     * @return strongest fresh result, null on miss
+     */
+    static ScanResult find(WifiManager wifiMgr, String ssid, long maxAge) {
+        ScanResult result = find(ssid, maxAge);
+        if (result == null) {
+            update(wifiMgr.getScanResults());
+            result = find(ssid, maxAge);
+        }
+        synchronized (ScanResultCache.class) {
+            if (result == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find a result for an SSID seen within maxAge, only in cache
+     *
+     * @param ssid   SSID without quotes
+     * @param maxAge freshness window in ms
+     * @return strongest fresh result, null if not found
+     */
+    static synchronized ScanResult find(String ssid, long maxAge) {
+        final long now = SystemClock.elapsedRealtime();
+        Entry found = null;
+        for (Entry entry : entries.values()) {
+            if (!ssid.equals(entry.result.SSID) || now - entry.seenAt > maxAge) {
+                continue;
+            }
+            if (found == null || entry.result.level > found.result.level) {
+                found = entry;
+            }
+        }
+        return found == null ? null : found.result;
+    }
+
+    /**
+     * @param ssid SSID without quotes
+     * @return age in ms of the freshest result for SSID, -1 if not known
+     */
+    static synchronized long getAge(String ssid) {
+        long seenAt = -1;
+        for (Entry entry : entries.values()) {
+            if (ssid.equals(entry.result.SSID) && entry.seenAt > seenAt) {
+                seenAt = entry.seenAt;
+            }
+        }
+        return seenAt < 0 ? -1 : SystemClock.elapsedRealtime() - seenAt;
+    }
+
+    static synchronized long getHits() {
+        return hits;
+    }
+
+    static synchronized long getMisses() {
+        return misses;
+    }
+
+    static synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,116 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+/**
+ * Created by Vittorio on 24/02/17.
+ */
+
+/**
+ * Process wide gate for {@link WifiManager#startScan()}.
+ * Since API 28 a foreground app can start {@link #MAX_SCANS} scans
+ * every {@link #WINDOW} ms, further requests are silently dropped.
+ * Scheduler keeps the rolling budget, coalesces requests while a scan
+ * is in flight and tells callers how long to wait when budget is
+ * exhausted, so they can use cached results meanwhile.
+ */
+class ScanScheduler {
+
+    static final int MAX_SCANS = 4;
+    static final long WINDOW = 2 * 60 * 1000;
+    /**
+     * Max age of results used when budget is exhausted
+     */
+    static final long STALE_MAX_AGE = WINDOW;
+    private static final long SCAN_TIMEOUT = 10 * 1000;
+    private static final int THROTTLING_SDK = 28;
+
+    // start times of last scans, ring buffer
+    private static final long[] starts = new long[MAX_SCANS];
+    private static int next;
+    private static long inFlightSince;
+    private static long started;
+    private static long coalesced;
+    private static long throttled;
+    private static final LatencyHistogram waits = new LatencyHistogram();
+
+    /**
+     * Request a scan.
+     *
+     * @param wifiMgr the wifi manager
+     * @return 0 if a scan has been started or is already in flight,
+     * otherwise ms to wait before budget allows a new scan
+     */
+    static synchronized long request(WifiManager wifiMgr) {
+        final long now = SystemClock.elapsedRealtime();
+        if (inFlightSince != 0 && now - inFlightSince < SCAN_TIMEOUT) {
+            // results of running scan are broadcast to every receiver
+            coalesced++;
+            return 0;
+        }
+        inFlightSince = 0;
+        final long wait = getWait(now);
+        if (wait > 0) {
+            throttled++;
+            return wait;
+        }
+        if (!wifiMgr.startScan()) {
+            // dropped by system, budget is shared with other scans of this app
+            throttled++;
+            return WINDOW / MAX_SCANS;
+        }
+        starts[next] = now;
+        next = (next + 1) % MAX_SCANS;
+        inFlightSince = now;
+        started++;
+        return 0;
+    }
+
+    /**
+     * Scan results available, scan is no more in flight
+     */
+    static synchronized void onScanResults() {
+        inFlightSince = 0;
+    }
+
+    /**
+     * Record the time a caller waited on throttling
+     *
+     * @param millis waited time
+     */
+    static void recordThrottleWait(long millis) {
+        waits.record(millis * 1000L);
+    }
+
+    /**
+     * @return histogram of times callers waited on throttling
+     */
+    static LatencyHistogram getThrottleWaits() {
+        return waits;
+    }
+
+    static synchronized long getStarted() {
+        return started;
+    }
+
+    static synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    static synchronized long getThrottled() {
+        return throttled;
+    }
+
+    private static long getWait(long now) {
+        if (Version.SDK < THROTTLING_SDK) {
+            return 0;
+        }
+        // oldest of last MAX_SCANS scans, 0 if budget not used yet
+        final long oldest = starts[next];
+        if (oldest == 0) {
+            return 0;
+        }
+        return Math.max(0, oldest + WINDOW - now);
+    }
+}
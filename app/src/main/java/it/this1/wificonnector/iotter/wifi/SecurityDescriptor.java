@@ -0,0 +1,46 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 25/02/17.
+ */
+
+/**
+ * Security of a capabilities string, classified once and shared by
+ * every scan result with the same string (see {@link SecurityDescriptorCache}).
+ */
+final class SecurityDescriptor {
+
+    enum PskType {
+        UNKNOWN,
+        WPA,
+        WPA2,
+        WPA_WPA2
+    }
+
+    /** flags parsed by {@link ScanCapabilities} */
+    final int capabilities;
+    /** security code of {@link ConfigurationSecurities} */
+    final int security;
+    final PskType pskType;
+    final String display;
+
+    SecurityDescriptor(int capabilities, int security, String display) {
+        this.capabilities = capabilities;
+        this.security = security;
+        this.pskType = getPskType(capabilities);
+        this.display = display;
+    }
+
+    static PskType getPskType(int capabilities) {
+        final boolean wpa = (capabilities & ScanCapabilities.WPA_PSK) != 0;
+        final boolean wpa2 = (capabilities & ScanCapabilities.WPA2_PSK) != 0;
+        if (wpa2 && wpa) {
+            return PskType.WPA_WPA2;
+        } else if (wpa2) {
+            return PskType.WPA2;
+        } else if (wpa) {
+            return PskType.WPA;
+        }
+        return PskType.UNKNOWN;
+    }
+}
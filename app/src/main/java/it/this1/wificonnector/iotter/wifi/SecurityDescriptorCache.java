@@ -0,0 +1,109 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.net.wifi.WifiConfiguration;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 25/02/17.
+ */
+
+/**
+ * Memoized security classification.
+ * In a dense scan a few capabilities strings (i.e. "[WPA2-PSK-CCMP][ESS]")
+ * repeat on almost every AP: they are mapped to a shared
+ * {@link SecurityDescriptor} by a bounded LRU map.
+ * Configurations are classified by the pattern of the low bits of
+ * key management, group ciphers and protocols plus presence of a
+ * WEP key: patterns are few, so they are kept in a small direct
+ * mapped table.
+ */
+class SecurityDescriptorCache {
+
+    private static final int MAX_DESCRIPTORS = 64;
+    private static final int PATTERN_SLOTS = 32;
+    private static final int PATTERN_BITS = 8;
+
+    private final Map<String, SecurityDescriptor> descriptors =
+            new LinkedHashMap<String, SecurityDescriptor>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SecurityDescriptor> eldest) {
+                    return size() > MAX_DESCRIPTORS;
+                }
+            };
+    // pattern << 8 | (security + 1), 0 if empty
+    private final long[] patterns = new long[PATTERN_SLOTS];
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capabilities capabilities string of a scan result
+     * @return descriptor, null if not cached
+     */
+    synchronized SecurityDescriptor get(String capabilities) {
+        final SecurityDescriptor descriptor = descriptors.get(capabilities);
+        if (descriptor != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return descriptor;
+    }
+
+    synchronized void put(String capabilities, SecurityDescriptor descriptor) {
+        descriptors.put(capabilities, descriptor);
+    }
+
+    /**
+     * Pattern of the configuration fields read by security classification
+     */
+    static int pattern(WifiConfiguration config) {
+        return lowBits(config.allowedKeyManagement)
+                | lowBits(config.allowedGroupCiphers) << PATTERN_BITS
+                | lowBits(config.allowedProtocols) << (2 * PATTERN_BITS)
+                | (config.wepKeys != null && config.wepKeys[0] != null ? 1 << (3 * PATTERN_BITS) : 0);
+    }
+
+    /**
+     * @return security code of a configuration pattern, -1 if not cached
+     */
+    synchronized int getSecurity(int pattern) {
+        final long slot = patterns[slot(pattern)];
+        if (slot != 0 && (int) (slot >>> 8) == pattern) {
+            hits++;
+            return (int) (slot & 0xff) - 1;
+        }
+        misses++;
+        return -1;
+    }
+
+    synchronized void putSecurity(int pattern, int security) {
+        patterns[slot(pattern)] = ((long) pattern << 8) | (security + 1);
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    private static int slot(int pattern) {
+        int h = pattern * 0x9E3779B9;
+        return (h >>> 27) & (PATTERN_SLOTS - 1);
+    }
+
+    private static int lowBits(BitSet bits) {
+        if (bits == null) {
+            return 0;
+        }
+        int value = 0;
+        for (int i = bits.nextSetBit(0); i >= 0 && i < PATTERN_BITS; i = bits.nextSetBit(i + 1)) {
+            value |= 1 << i;
+        }
+        return value;
+    }
+}
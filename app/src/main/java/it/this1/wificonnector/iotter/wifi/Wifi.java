@@ -32,6 +32,7 @@ import android.net.wifi.WifiManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
@@ -49,12 +50,15 @@ public class Wifi {
 	 * @return
 	 */
 	public static boolean changePasswordAndConnect(final Context ctx, final WifiManager wifiMgr, final WifiConfiguration config, final String newPassword, final int numOpenNetworksKept) {
-		ConfigSec.setupSecurity(config, ConfigSec.getWifiConfigurationSecurity(config), newPassword);
+		final int security = ConfigSec.getWifiConfigurationSecurityCode(config);
+		ConfigSec.setupSecurity(config, security, getKey(config.SSID, security, newPassword));
 		final int networkId = wifiMgr.updateNetwork(config);
 		if(networkId == -1) {
 			// Update failed.
+			ConfiguredNetworksSnapshot.invalidate();
 			return false;
 		}
+		ConfiguredNetworksSnapshot.onUpdated(config);
 		// Force the change to apply.
 		wifiMgr.disconnect();
 		return connectToConfiguredNetwork(ctx, wifiMgr, config, true);
@@ -62,6 +66,8 @@ public class Wifi {
 	
 	/**
 	 * Configure a network, and run to it.
+	 * Configuration of the same SSID and security is updated if it has
+	 * been added by us, a new one is added otherwise.
 	 * @param wifiMgr
 	 * @param scanResult
 	 * @param password Password for secure network or is ignored.
@@ -74,10 +80,27 @@ public class Wifi {
 			checkForExcessOpenNetworkAndSave(wifiMgr, numOpenNetworksKept);
 		}
 		
-		WifiConfiguration config = new WifiConfiguration();
+		final String key = getKey(scanResult.SSID, ConfigSec.toSecurityCode(security), password);
+		WifiConfiguration config = getWifiConfiguration(wifiMgr, scanResult, security);
+		if(config != null && ManagedNetworks.isManaged(ctx, config.SSID, security)) {
+			// Upsert: update our own one instead of adding a duplicate,
+			// networks of the user or other apps are left alone
+			final String oldBssid = config.BSSID;
+			config.BSSID = scanResult.BSSID;
+			ConfigSec.setupSecurity(config, security, key);
+			if(wifiMgr.updateNetwork(config) != -1) {
+				ConfiguredNetworksSnapshot.onUpdated(config);
+				return connectToConfiguredNetwork(ctx, wifiMgr, config, true);
+			}
+			// i.e. owned by another app on API 23+, add our own
+			config.BSSID = oldBssid;
+			ConfiguredNetworksSnapshot.invalidate();
+		}
+		
+		config = new WifiConfiguration();
 		config.SSID = convertToQuotedString(scanResult.SSID);
 		config.BSSID = scanResult.BSSID;
-		ConfigSec.setupSecurity(config, security, password);
+		ConfigSec.setupSecurity(config, security, key);
 		
 		int id = -1;
 		try {
@@ -90,8 +113,11 @@ public class Wifi {
 		if(id == -1) {
 			return false;
 		}
+		config.networkId = id;
+		ConfiguredNetworksSnapshot.onAdded(config);
+		ManagedNetworks.touch(ctx, config.SSID, security);
 		
-		if(!wifiMgr.saveConfiguration()) {
+		if(!ConfiguredNetworksSnapshot.save(wifiMgr)) {
 			return false;
 		}
 		
@@ -114,30 +140,30 @@ public class Wifi {
 		final String security = ConfigSec.getWifiConfigurationSecurity(config);
 		
 		int oldPri = config.priority;
-		// Make it the highest priority.
-		int newPri = getMaxPriority(wifiMgr) + 1;
-		if(newPri > MAX_PRIORITY) {
-			newPri = shiftPriorityAndSave(wifiMgr);
-			config = getWifiConfiguration(wifiMgr, config, security);
-			if(config == null) {
-				return false;
-			}
+		// Make it the highest priority, others are renumbered
+		// only when MAX_PRIORITY is reached.
+		int newPri = PriorityAllocator.allocate(wifiMgr, config);
+		if(newPri == -1) {
+			return false;
 		}
 		
 		// Set highest priority to this configured network
 		config.priority = newPri;
 		int networkId = wifiMgr.updateNetwork(config);
 		if(networkId == -1) {
+			config.priority = oldPri;
 			return false;
 		}
+		ConfiguredNetworksSnapshot.onUpdated(config);
 		
 		// Do not disable others
 		if(!wifiMgr.enableNetwork(networkId, false)) {
 			config.priority = oldPri;
+			ConfiguredNetworksSnapshot.invalidate();
 			return false;
 		}
 		
-		if(!wifiMgr.saveConfiguration()) {
+		if(!ConfiguredNetworksSnapshot.save(wifiMgr)) {
 			config.priority = oldPri;
 			return false;
 		}
@@ -148,13 +174,14 @@ public class Wifi {
 			return false;
 		}
 		
-		ReenableAllApsWhenNetworkStateChanged.schedule(ctx);
+		ReenableAllApsWhenNetworkStateChanged.schedule(ctx, wifiMgr, config.networkId);
 		
 		// Disable others, but do not save.
 		// Just to force the WifiManager to run to it.
 		if(!wifiMgr.enableNetwork(config.networkId, true)) {
 			return false;
 		}
+		ConfiguredNetworksSnapshot.onEnabled(config.networkId, true);
 		
 		final boolean connect = reassociate ? wifiMgr.reassociate() : wifiMgr.reconnect();
 		if(!connect) {
@@ -190,56 +217,36 @@ public class Wifi {
 	 * @return Operation succeed or not.
 	 */
 	private static boolean checkForExcessOpenNetworkAndSave(final WifiManager wifiMgr, final int numOpenNetworksKept) {
-		final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
+		final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+		if(snapshot == null) {
+			return false;
+		}
+		final List<WifiConfiguration> configurations = new ArrayList<WifiConfiguration>(snapshot.getAll());
 		sortByPriority(configurations);
 		
 		boolean modified = false;
 		int tempCount = 0;
 		for(int i = configurations.size() - 1; i >= 0; i--) {
 			final WifiConfiguration config = configurations.get(i);
-			if(ConfigSec.isOpenNetwork(ConfigSec.getWifiConfigurationSecurity(config))) {
+			if(ConfigSec.isOpenNetwork(ConfigSec.getWifiConfigurationSecurityCode(config))) {
 				tempCount++;
 				if(tempCount >= numOpenNetworksKept) {
 					modified = true;
-					wifiMgr.removeNetwork(config.networkId);
+					if(wifiMgr.removeNetwork(config.networkId)) {
+						ConfiguredNetworksSnapshot.onRemoved(config.networkId);
+					}
 				}
 			}
 		}
 		if(modified) {
-			return wifiMgr.saveConfiguration();
+			if(!ConfiguredNetworksSnapshot.save(wifiMgr)) {
+				return false;
+			}
 		}
 		
 		return true;
 	}
 	
-	private static final int MAX_PRIORITY = 99999;
-	
-	private static int shiftPriorityAndSave(final WifiManager wifiMgr) {
-		final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
-		sortByPriority(configurations);
-		final int size = configurations.size();
-		for(int i = 0; i < size; i++) {
-			final WifiConfiguration config = configurations.get(i);
-			config.priority = i;
-			wifiMgr.updateNetwork(config);
-		}
-		wifiMgr.saveConfiguration();
-		return size;
-	}
-
-	private static int getMaxPriority(final WifiManager wifiManager) {
-		final List<WifiConfiguration> configurations = wifiManager.getConfiguredNetworks();
-		int pri = 0;
-		for(final WifiConfiguration config : configurations) {
-			if(config.priority > pri) {
-				pri = config.priority;
-			}
-		}
-		return pri;
-	}
-	
-	private static final String BSSID_ANY = "any";
-
 	public static WifiConfiguration getWifiConfiguration(final WifiManager wifiMgr, final ScanResult hotsopt, String hotspotSecurity) {
 		final String ssid = convertToQuotedString(hotsopt.SSID);
 		if(ssid.length() == 0) {
@@ -255,23 +262,11 @@ public class Wifi {
 			hotspotSecurity = ConfigSec.getScanResultSecurity(hotsopt);
 		}
 		
-		final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
-		if(configurations == null) {
+		final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+		if(snapshot == null) {
 			return null;
 		}
-
-		for(final WifiConfiguration config : configurations) {
-			if(config.SSID == null || !ssid.equals(config.SSID)) {
-				continue;
-			}
-			if(config.BSSID == null || BSSID_ANY.equals(config.BSSID) ||  bssid.equals(config.BSSID)) {
-				final String configSecurity = ConfigSec.getWifiConfigurationSecurity(config);
-				if(hotspotSecurity.equals(configSecurity)) {
-					return config;
-				}
-			}
-		}
-		return null;
+		return snapshot.find(ssid, bssid, hotspotSecurity);
 	}
 	
 	public static WifiConfiguration getWifiConfiguration(final WifiManager wifiMgr, final WifiConfiguration configToFind, String security) {
@@ -287,20 +282,32 @@ public class Wifi {
 			security = ConfigSec.getWifiConfigurationSecurity(configToFind);
 		}
 		
-		final List<WifiConfiguration> configurations = wifiMgr.getConfiguredNetworks();
-
-		for(final WifiConfiguration config : configurations) {
-			if(config.SSID == null || !ssid.equals(config.SSID)) {
-				continue;
-			}
-			if(config.BSSID == null || BSSID_ANY.equals(config.BSSID) || bssid == null || bssid.equals(config.BSSID)) {
-				final String configSecurity = ConfigSec.getWifiConfigurationSecurity(config);
-				if(security.equals(configSecurity)) {
-					return config;
-				}
-			}
+		final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(wifiMgr);
+		if(snapshot == null) {
+			return null;
+		}
+		return snapshot.find(ssid, bssid, security);
+	}
+	
+	/**
+	 * Key to configure: the PSK derived from passphrase if already
+	 * available (see {@link PskCache#prefetch(String, String)}), so
+	 * supplicant does not derive it on association, otherwise password.
+	 */
+	private static String getKey(String ssid, int security, String password) {
+		if(!ConfigSec.isPskNetwork(security) || TextUtils.isEmpty(ssid)) {
+			return password;
+		}
+		final String psk = PskCache.get(convertToUnquotedString(ssid), password);
+		return psk != null ? psk : password;
+	}
+	
+	private static String convertToUnquotedString(String string) {
+		final int lastPos = string.length() - 1;
+		if(lastPos > 0 && string.charAt(0) == '"' && string.charAt(lastPos) == '"') {
+			return string.substring(1, lastPos);
 		}
-		return null;
+		return string;
 	}
 	
 	public static String convertToQuotedString(String string) {
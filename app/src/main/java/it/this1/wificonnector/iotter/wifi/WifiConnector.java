@@ -5,19 +5,25 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
 import android.net.NetworkInfo;
 import android.net.wifi.ScanResult;
+import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by Vittorio on 28/01/17.
@@ -35,6 +41,11 @@ import java.util.TimerTask;
  *      {@link WifiConnector.connectorListener#onAuthenticationError()}
  *      fired when AP key provided is not correct
  *      {@link WifiConnector.connectorListener#onAuthenticationError()}
+ * Broadcasts are received and radio/configuration work is done on a
+ * background looper shared by all connectors, events are delivered
+ * on the executor passed to connect (main thread by default).
+ * Setters are applied on the looper too, so they reach the next
+ * attempt in the order they are called with connect.
  */
 public class WifiConnector {
 
@@ -45,8 +56,31 @@ public class WifiConnector {
     private String mPassword;
     private Context mContext;
     private connectorListener mListener;
-    private Timer setUpTimer;
     private int SETUP_TO    = 30*1000;
+    private int FAST_PATH_TO = 10*1000;
+    private static HandlerThread sWorker;
+    private static ExecutorService sProbeExecutor;
+    private Handler mHandler;
+    private Executor mMainExecutor;
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine();
+    private boolean mRegistered;
+    private Attempt mLatest;
+    private Attempt mCurrent;
+    private ProbeTask mProbeTask;
+    private NetworkInfo.DetailedState mLastDetailedState;
+    private SupplicantState mLastSupplicantState;
+    private int mHandshakeFailures;
+    private int mMaxHandshakeFailures = 2;
+    private ScanResult mFoundResult;
+    private WifiInfo mConnectedInfo;
+    private long mThrottledSince;
+    private String mProbeHost;
+    private int mProbePort = ReachabilityProbe.DEFAULT_PORT;
+    private long mProbeBudget = ReachabilityProbe.DEFAULT_BUDGET;
+    private long mScanMaxAge = ScanResultCache.DEFAULT_MAX_AGE;
+    private boolean mDerivePsk = true;
+    private long mStaleNetworkAge = ManagedNetworks.DEFAULT_MAX_AGE;
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics();
 
     public class ParamInvalid extends Exception {
 
@@ -91,27 +125,223 @@ public class WifiConnector {
     private WifiConnector() {}
 
     /**
-     * Constructor. A context must be provided
+     * Constructor. A context must be provided.
+     * The receiver of wifi broadcasts is registered by the first attempt
+     * and kept until {@link #release()}, call it when the connector is
+     * no longer used (i.e. in onDestroy).
      * @param mContext {@link Context}
      */
     public WifiConnector(Context mContext) {
         this.mContext = mContext;
         mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        mHandler = new Handler(getWorker().getLooper());
+        final Handler mainHandler = new Handler(mContext.getMainLooper());
+        mMainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+        ConfiguredNetworksSnapshot.watch(mContext);
+    }
+
+    private static synchronized HandlerThread getWorker() {
+        if(sWorker == null) {
+            sWorker = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sWorker.start();
+        }
+        return sWorker;
+    }
+
+    /**
+     * Probes block up to their budget: they run on their own thread,
+     * so connector looper keeps handling broadcasts meanwhile.
+     */
+    private static synchronized ExecutorService getProbeExecutor() {
+        if(sProbeExecutor == null) {
+            sProbeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "-probe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sProbeExecutor;
     }
 
     /**
      * Let to run to a WIFI network identified by SSID.
      * Accept a listener to monitoring operations.
+     * If network is already configured it is connected at once,
+     * scan is done only if association fails.
+     * @param ssid
+     * @param password
+     * Events are delivered on main thread.
+     * @param mListener {@link connectorListener} can be null
+     * @return the {@link Attempt}, to cancel it
+     */
+    public Attempt connect(String ssid, String password, connectorListener mListener) throws ParamInvalid {
+        return connect(ssid, password, mMainExecutor, mListener);
+    }
+
+    /**
+     * Let to run to a WIFI network identified by SSID.
+     * Returns at once, work is done on background looper.
+     * If the same SSID and password failed recently the error is
+     * fired again at once.
+     * @param ssid
+     * @param password
+     * @param executor {@link Executor} events are delivered on
+     * @param mListener {@link connectorListener} can be null
+     * @return the {@link Attempt}, to cancel it
+     */
+    public Attempt connect(String ssid, String password, Executor executor, connectorListener mListener) throws ParamInvalid {
+        return connect(ssid, password, executor, mListener, false);
+    }
+
+    /**
+     * Let to run to a WIFI network identified by SSID.
+     * Returns at once, work is done on background looper.
      * @param ssid
      * @param password
+     * @param executor {@link Executor} events are delivered on
      * @param mListener {@link connectorListener} can be null
+     * @param force true to try even if the same SSID and password failed recently
+     * @return the {@link Attempt}, to cancel it
      */
-    public void connect(String ssid, String password, connectorListener mListener) throws ParamInvalid {
-        this.mListener = mListener;
+    public Attempt connect(String ssid, String password, Executor executor, connectorListener mListener, boolean force) throws ParamInvalid {
         if(ssid == null || ssid.isEmpty() || password == null || password.length() < 6) throw  new ParamInvalid();
-        mSsid = ssid;
-        mPassword = password;
-        setUpWifi();
+        final Attempt attempt = new Attempt(ssid, password, executor, mListener, force);
+        synchronized (this) {
+            // superseded
+            if(mLatest != null) {
+                mLatest.cancel();
+            }
+            mLatest = attempt;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                start(attempt);
+            }
+        });
+        return attempt;
+    }
+
+    /**
+     * Cancel pending attempts, if any, and unregister the receiver.
+     * Connector can be used again.
+     */
+    public void release() {
+        synchronized (this) {
+            if(mLatest != null) {
+                mLatest.cancel();
+                mLatest = null;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mCurrent != null) {
+                    abandon(mCurrent);
+                }
+                unregister();
+                // listener of the last attempt may hold an Activity
+                mListener = null;
+                mFoundResult = null;
+                mScanResults = null;
+            }
+        });
+    }
+
+    /**
+     * Latency of connection attempts split by phase
+     * @return {@link ConnectionMetrics} of this connector
+     */
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the host that must accept a TCP connection before
+     * {@link connectorListener#onConnected(WifiInfo)} is fired.
+     * By default it is the gateway of the network, or 192.168.4.1
+     * if not known yet.
+     * @param host host to probe, null for default
+     * @param port TCP port to probe
+     * @param budget max time in ms to wait, then event is fired anyway
+     */
+    public void setReachabilityTarget(final String host, final int port, final long budget) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProbeHost = host;
+                mProbePort = port;
+                mProbeBudget = budget;
+            }
+        });
+    }
+
+    /**
+     * Set how old a scan result can be to connect without a new scan.
+     * Results of scans done by the system or other apps are used too.
+     * @param maxAge freshness window in ms, 0 to always scan
+     */
+    public void setScanFreshness(final long maxAge) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScanMaxAge = maxAge;
+            }
+        });
+    }
+
+    /**
+     * Derive WPA key from password on a background thread and configure
+     * it instead of password, so supplicant does not run PBKDF2 on
+     * every association. Derived keys are cached, connecting again to
+     * the same SSID costs nothing.
+     * @param derive true to derive (default), false to configure password as is
+     */
+    public void setPskDerivation(final boolean derive) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDerivePsk = derive;
+            }
+        });
+    }
+
+    /**
+     * Networks configured by this connector and not used for maxAge
+     * are removed, at most once a day after a successful connection.
+     * @param maxAge age in ms, 0 to keep networks forever
+     */
+    public void setStaleNetworkAge(final long maxAge) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStaleNetworkAge = maxAge;
+            }
+        });
+    }
+
+    /**
+     * Set how many times the 4-way (or group key) handshake can fail
+     * in an attempt before {@link connectorListener#onAuthenticationError()}
+     * is fired. A wrong key fails every handshake, the limit only
+     * tolerates a noisy link.
+     * @param max failures, at least 1
+     */
+    public void setHandshakeFailureLimit(final int max) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMaxHandshakeFailures = Math.max(1, max);
+            }
+        });
     }
 
     /**
@@ -124,7 +354,10 @@ public class WifiConnector {
 
         if (wifiInfo != null && wifiInfo.getNetworkId() != -1) {
             boolean rm = mWifiManager.removeNetwork(wifiInfo.getNetworkId());
-            boolean sc = mWifiManager.saveConfiguration();
+            if (rm) {
+                ConfiguredNetworksSnapshot.onRemoved(wifiInfo.getNetworkId());
+            }
+            boolean sc = ConfiguredNetworksSnapshot.save(mWifiManager);
 
             return rm && sc;
         } else
@@ -150,188 +383,542 @@ public class WifiConnector {
         return null;
     }
 
-    private void setUpWifi() {
-        mWifiManager.setWifiEnabled(true);
-        final IntentFilter filter = new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
-        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-        mContext.registerReceiver(mScanReceiver, filter);
-        setUpTimer = new Timer();
-        setUpTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
+    /**
+     * Start an attempt, on background looper
+     */
+    private void start(Attempt attempt) {
+        if(attempt.isCancelled()) {
+            return;
+        }
+        if(mCurrent != null) {
+            // superseded by this one
+            abandon(mCurrent);
+        }
+        mSsid = attempt.ssid;
+        mPassword = attempt.password;
+        mListener = attempt.listener;
+        if(attempt.force) {
+            FailureCache.forget(mSsid, mPassword);
+        }
+        else if(reportRecentFailure()) {
+            return;
+        }
+        mCurrent = attempt;
+        mLastDetailedState = null;
+        mLastSupplicantState = null;
+        mHandshakeFailures = 0;
+        mMetrics.begin();
+        if(mDerivePsk) {
+            // ready by the time network is configured, usually
+            PskCache.prefetch(mSsid, mPassword);
+        }
+        mHandler.postDelayed(mSetUpTimeout, SETUP_TO);
+        if(!mRegistered) {
+            final IntentFilter filter = new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+            filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+            filter.addAction(WifiManager.SUPPLICANT_STATE_CHANGED_ACTION);
+            mContext.registerReceiver(mReceiver, filter, null, mHandler);
+            mRegistered = true;
+        }
+        fire(connectKnownNetwork() ? ConnectionStateMachine.Event.KNOWN_NETWORK_ENABLED
+                : ConnectionStateMachine.Event.SCAN_NEEDED);
+    }
+
+    /**
+     * Stop receiving wifi broadcasts, on background looper, by release only
+     */
+    private void unregister() {
+        if(mRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mRegistered = false;
+        }
+    }
+
+    /**
+     * Stop an attempt, on background looper: its state is left,
+     * timers disarmed and probe stopped.
+     */
+    private void abandon(Attempt attempt) {
+        if(attempt != mCurrent) {
+            // over already
+            return;
+        }
+        mCurrent = null;
+        if(mMachine.getState() != ConnectionStateMachine.State.IDLE) {
+            Log.d(TAG, "abandon attempt in state " + mMachine.getState());
+            leave(mMachine.reset());
+        }
+        disarm();
+        if(mProbeTask != null) {
+            mProbeTask.abort();
+            mProbeTask = null;
+        }
+    }
+
+    /**
+     * @return true if the same SSID and password failed recently and
+     * the failure has been reported again
+     */
+    private boolean reportRecentFailure() {
+        final FailureCache.Failure failure = FailureCache.find(mSsid, mPassword);
+        if(failure == null) {
+            return false;
+        }
+        Log.d(TAG, "SSID " + mSsid + " failed recently: " + failure);
+        if(mListener != null) {
+            if(failure == FailureCache.Failure.AUTHENTICATION) {
+                mListener.onAuthenticationError();
+            }
+            else {
+                mListener.onSSIDFoundError();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fire an event and run the action of its transition, if any
+     */
+    private void fire(ConnectionStateMachine.Event event) {
+        final ConnectionStateMachine.Transition transition = mMachine.fire(event);
+        if(transition == null) {
+            return;
+        }
+        if(transition.to != transition.from) {
+            Log.d(TAG, transition.from + " -> " + transition.to + " on " + event);
+            leave(transition.from);
+        }
+        if(transition.to == ConnectionStateMachine.State.IDLE || transition.to == ConnectionStateMachine.State.PROBING) {
+            disarm();
+        }
+        if(transition.to == ConnectionStateMachine.State.IDLE) {
+            mCurrent = null;
+        }
+        switch (transition.action) {
+            case WAIT_FAST_PATH:
+                mHandler.postDelayed(mFastPathTimeout, FAST_PATH_TO);
+                break;
+            case SCAN:
+                if(transition.from == ConnectionStateMachine.State.FAST_PATH) {
+                    Log.d(TAG, "SSID " + mSsid + " not associated, fall back to scan");
+                }
+                setUpWifi();
+                break;
+            case RESCAN:
+                rescan();
+                break;
+            case CONNECT_TO_RESULT:
+                connectToScanResult(mFoundResult);
+                break;
+            case PROBE:
+                generateConnectedDelayedEvent();
+                break;
+            case REPORT_CONNECTED:
+                FailureCache.forget(mSsid, mPassword);
+                touchConnectedNetwork();
+                if(mListener != null) {
+                    mListener.onConnected(mConnectedInfo);
+                }
+                mHandler.post(mCleanUp);
+                break;
+            case REPORT_SSID_NOT_FOUND:
+                Log.e(TAG, "SSID " + mSsid + " not found!");
+                FailureCache.record(FailureCache.Failure.SSID_NOT_FOUND, mSsid, mPassword);
+                mMetrics.fail();
+                if(mListener != null) {
+                    mListener.onSSIDFoundError();
+                }
+                break;
+            case REPORT_AUTHENTICATION_ERROR:
+                FailureCache.record(FailureCache.Failure.AUTHENTICATION, mSsid, mPassword);
+                mMetrics.fail();
+                if(mListener != null) {
+                    mListener.onAuthenticationError();
+                }
+                break;
+            case REPORT_DISCONNECTED:
+                Log.e(TAG, "Connect to AP but not to SSID " + mSsid);
+                mMetrics.fail();
+                if(mListener != null) {
+                    mListener.onDisconnected();
+                }
+                break;
+            case REPORT_TIMEOUT:
+                mMetrics.fail();
                 if(mListener != null) {
                     mListener.onTimeout();
                 }
+                break;
+        }
+    }
+
+    /**
+     * Record use of the network just connected, whatever path
+     * connected it, if it has been configured by us
+     */
+    private void touchConnectedNetwork() {
+        if(mConnectedInfo == null) {
+            return;
+        }
+        final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(mWifiManager);
+        final WifiConfiguration config = snapshot == null ? null : snapshot.find(mConnectedInfo.getNetworkId());
+        if(config != null && config.SSID != null) {
+            ManagedNetworks.touchIfManaged(mContext, config.SSID, Wifi.ConfigSec.getWifiConfigurationSecurity(config));
+        }
+    }
+
+    /**
+     * Janitor, run on background looper after a successful connection
+     */
+    private final Runnable mCleanUp = new Runnable() {
+        @Override
+        public void run() {
+            final long maxAge = mStaleNetworkAge;
+            if(maxAge > 0 && ManagedNetworks.isCleanUpDue(mContext)) {
+                ManagedNetworks.cleanUp(mContext, mWifiManager, maxAge);
             }
-        },SETUP_TO);
+        }
+    };
+
+    /**
+     * Release what a state holds
+     */
+    private void leave(ConnectionStateMachine.State state) {
+        switch (state) {
+            case FAST_PATH:
+                mHandler.removeCallbacks(mFastPathTimeout);
+                break;
+            case SCANNING:
+                mHandler.removeCallbacks(mScanRetry);
+                endThrottling();
+                break;
+            default:
+                break;
+        }
     }
 
     /**
-     * Receiver used only with scan result so can be unregister
-     * after found SSID provisioned or error.
-     * Receiver will fire {@link connectorListener} callbacks
+     * Attempt is over or connected, no more timeout
      */
-    private BroadcastReceiver mScanReceiver = new BroadcastReceiver() {
+    private void disarm() {
+        mHandler.removeCallbacks(mSetUpTimeout);
+    }
+
+    private final Runnable mSetUpTimeout = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (action.equals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) {
-                Log.d(TAG, "onReceive() SCAN_RESULTS_AVAILABLE_ACTION");
-                mScanResults = mWifiManager.getScanResults();
-                if (mScanResults != null) {
-                    Log.d(TAG, mScanResults.toString());
-                    for (ScanResult result : mScanResults) {
-                        if (result.SSID.equals(mSsid)) {
-                            Log.d(TAG, "SSID " + mSsid + " found try to run to");
-                            Wifi.connectToNewNetwork(mContext, mWifiManager, result, mPassword, 1);
-                            context.unregisterReceiver(this);
-                            final IntentFilter filter1 = new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-                            context.registerReceiver(mReceiver, filter1);
-                            if(mListener != null) {
-                                mListener.onSSIDFound(result);
-                            }
-                            return;
-                        }
+        public void run() {
+            fire(ConnectionStateMachine.Event.TIMEOUT);
+        }
+    };
+
+    /**
+     * Fast path: if SSID is already configured by us (i.e. device provisioned
+     * minutes ago) with the security seen in a recent scan, connect to it
+     * without waiting for a scan.
+     * @return true if connection started, false if scan is needed
+     */
+    private boolean connectKnownNetwork() {
+        // security of the network as seen in the air, config must match it
+        final ScanResult result = ScanResultCache.find(mWifiManager, mSsid, ScanResultCache.MAX_KEEP);
+        if(result == null) {
+            return false;
+        }
+        final String security = Wifi.ConfigSec.getScanResultSecurity(result);
+        if(Wifi.ConfigSec.isOpenNetwork(security)) {
+            return false;
+        }
+        final ConfiguredNetworksSnapshot snapshot = ConfiguredNetworksSnapshot.get(mWifiManager);
+        if(snapshot == null) {
+            // wifi off
+            return false;
+        }
+        final String quotedSsid = StringUtils.convertToQuotedString(mSsid);
+        final WifiConfiguration config = snapshot.find(quotedSsid, null, security);
+        // never rewrite the key of a network configured by user or other apps
+        if(config == null || !ManagedNetworks.isManaged(mContext, quotedSsid, security)) {
+            return false;
+        }
+        Log.d(TAG, "SSID " + mSsid + " already configured, connect without scan");
+        mWifiManager.setWifiEnabled(true);
+        mMetrics.mark(ConnectionMetrics.Phase.ENABLE);
+        // password may have changed since network was configured
+        if(!Wifi.changePasswordAndConnect(mContext, mWifiManager, config, mPassword, 1)) {
+            Log.w(TAG, "SSID " + mSsid + " not connected, fall back to scan");
+            return false;
+        }
+        mMetrics.mark(ConnectionMetrics.Phase.CONFIGURED);
+        return true;
+    }
+
+    private final Runnable mFastPathTimeout = new Runnable() {
+        @Override
+        public void run() {
+            fire(ConnectionStateMachine.Event.FAST_PATH_TIMEOUT);
+        }
+    };
+
+    private void setUpWifi() {
+        mWifiManager.setWifiEnabled(true);
+        mMetrics.mark(ConnectionMetrics.Phase.ENABLE);
+        final WifiInfo info = getWifiInfo();
+        if(info != null && StringUtils.convertToQuotedString(mSsid).equals(info.getSSID())) {
+            Log.d(TAG, "SSID " + mSsid + " already connected");
+            mMetrics.mark(ConnectionMetrics.Phase.CONNECTED);
+            mConnectedInfo = info;
+            fire(ConnectionStateMachine.Event.CONNECTED);
+            return;
+        }
+        rescan();
+    }
+
+    /**
+     * Use a fresh result if any, otherwise scan
+     */
+    private void rescan() {
+        final ScanResult cached = findFreshScanResult();
+        if(cached != null) {
+            mFoundResult = cached;
+            fire(ConnectionStateMachine.Event.SSID_FOUND);
+            return;
+        }
+        requestScan();
+    }
+
+    /**
+     * Start a scan within the scan budget. When budget is exhausted
+     * results held by the system are used even if stale, otherwise
+     * scan is retried when budget allows it.
+     */
+    private void requestScan() {
+        if(mMachine.getState() != ConnectionStateMachine.State.SCANNING) {
+            return;
+        }
+        final long wait = ScanScheduler.request(mWifiManager);
+        if(wait == 0) {
+            endThrottling();
+            Log.d(TAG, "wifi scan requested");
+            return;
+        }
+        if(mThrottledSince == 0) {
+            mThrottledSince = SystemClock.elapsedRealtime();
+        }
+        final ScanResult cached = ScanResultCache.find(mWifiManager, mSsid, ScanScheduler.STALE_MAX_AGE);
+        if(cached != null) {
+            Log.d(TAG, "scan throttled, use result seen " + ScanResultCache.getAge(mSsid) + "ms ago");
+            mFoundResult = cached;
+            fire(ConnectionStateMachine.Event.SSID_FOUND);
+            return;
+        }
+        Log.d(TAG, "scan throttled, retry in " + wait + "ms");
+        mHandler.removeCallbacks(mScanRetry);
+        mHandler.postDelayed(mScanRetry, wait);
+    }
+
+    private final Runnable mScanRetry = new Runnable() {
+        @Override
+        public void run() {
+            requestScan();
+        }
+    };
+
+    private void endThrottling() {
+        if(mThrottledSince != 0) {
+            ScanScheduler.recordThrottleWait(SystemClock.elapsedRealtime() - mThrottledSince);
+            mThrottledSince = 0;
+        }
+    }
+
+    /**
+     * @return result for SSID seen within freshness window, null if a scan is needed
+     */
+    private ScanResult findFreshScanResult() {
+        if(mScanMaxAge <= 0) {
+            return null;
+        }
+        final ScanResult cached = ScanResultCache.find(mWifiManager, mSsid, mScanMaxAge);
+        if(cached != null) {
+            Log.d(TAG, "SSID " + mSsid + " seen " + ScanResultCache.getAge(mSsid) + "ms ago, no scan needed");
+        }
+        return cached;
+    }
+
+    /**
+     * SSID found: configure network and wait for connection,
+     * a key not valid for the network security is an authentication error
+     */
+    private void connectToScanResult(ScanResult result) {
+        Log.d(TAG, "SSID " + mSsid + " found try to run to");
+        mMetrics.mark(ConnectionMetrics.Phase.SSID_FOUND);
+        final String security = Wifi.ConfigSec.getScanResultSecurity(result);
+        if(!Wifi.ConfigSec.isValidKey(Wifi.ConfigSec.toSecurityCode(security), mPassword)) {
+            // AP would reject it anyway, don't touch configured networks
+            Log.e(TAG, "SSID " + mSsid + " password is not a valid " + security + " key");
+            fire(ConnectionStateMachine.Event.AUTHENTICATION_FAILED);
+            return;
+        }
+        Wifi.connectToNewNetwork(mContext, mWifiManager, result, mPassword, 1);
+        mMetrics.mark(ConnectionMetrics.Phase.CONFIGURED);
+        if(mListener != null) {
+            mListener.onSSIDFound(result);
+        }
+    }
+
+    /**
+     * A connection attempt started by connect
+     */
+    public class Attempt {
+        private final String ssid;
+        private final String password;
+        private final connectorListener listener;
+        private final boolean force;
+        private volatile boolean cancelled;
+
+        private Attempt(String ssid, String password, Executor executor, connectorListener listener, boolean force) {
+            this.ssid = ssid;
+            this.password = password;
+            this.listener = listener == null ? null : new ExecutorListener(executor, listener, this);
+            this.force = force;
+        }
+
+        /**
+         * Stop the attempt within a turn of connector looper: timers are
+         * disarmed, reachability probe is stopped and no more events are
+         * fired, even the ones already handed to the executor.
+         * Safe to call more than once, from any thread.
+         */
+        public void cancel() {
+            if(cancelled) {
+                return;
+            }
+            cancelled = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    abandon(Attempt.this);
+                }
+            });
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String getSsid() {
+            return ssid;
+        }
+    }
+
+    /**
+     * Delivers events of an attempt on an {@link Executor},
+     * unless attempt has been cancelled meanwhile
+     */
+    private static class ExecutorListener implements connectorListener {
+        private final Executor mExecutor;
+        private final connectorListener mListener;
+        private final Attempt mAttempt;
+
+        ExecutorListener(Executor executor, connectorListener listener, Attempt attempt) {
+            mExecutor = executor;
+            mListener = listener;
+            mAttempt = attempt;
+        }
+
+        @Override
+        public void onConnected(final WifiInfo info) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
+                        mListener.onConnected(info);
                     }
-                    Log.e(TAG, "SSID " + mSsid + " not found!");
-                    context.unregisterReceiver(this);
-                    if(mListener != null) {
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
+                        mListener.onDisconnected();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onSSIDFoundError() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
                         mListener.onSSIDFoundError();
                     }
-                    if(setUpTimer != null) {
-                        setUpTimer.cancel();
-                        setUpTimer = null;
+                }
+            });
+        }
+
+        @Override
+        public void onAuthenticationError() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
+                        mListener.onAuthenticationError();
                     }
-                    return;
                 }
+            });
+        }
 
-                // TODO: add counter???
-            }
-            if (action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
-                NetworkInfo mInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
-                if (mInfo != null && mInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-                    if (mInfo.isConnectedOrConnecting()) {
-                        NetworkInfo.DetailedState currentState = mInfo.getDetailedState();
-                        Log.d(TAG, currentState.toString());
-                        WifiInfo info = mWifiManager.getConnectionInfo();
-                        if (info != null) {
-                            Log.d(TAG, info.toString());
-                            String quotedString = StringUtils.convertToQuotedString(mSsid);
-                            boolean ssidEquals = quotedString.equals(info.getSSID());
-                            Log.d(TAG, String.format("Connected SSID %s, desired %s", info.getSSID(), mSsid));
-                            if (ssidEquals) {
-                                if(setUpTimer != null) {
-                                    setUpTimer.cancel();
-                                    setUpTimer = null;
-                                }
-                                mContext.unregisterReceiver(this);
-//                                if (mListener != null) {
-//                                    mListener.onConnected(info);
-//                                }
-                                generateConnectedDelayedEvent(info);
-                                return;
-                            }
-                        }
+        @Override
+        public void onSSIDFound(final ScanResult info) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
+                        mListener.onSSIDFound(info);
                     }
-                    Log.d(TAG, "start wifi scan");
-                    mWifiManager.startScan();
                 }
-            }
+            });
         }
-    };
 
+        @Override
+        public void onTimeout() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mAttempt.isCancelled()) {
+                        mListener.onTimeout();
+                    }
+                }
+            });
+        }
+    }
 
     /**
-     * Receiver used only for net state changes to check if we
-     * were able to run to AP. Using detailed state
-     * we are able to detect some particular error as authentication error.
-     * Receiver will fire {@link connectorListener} callbacks
+     * Single receiver of the connector, registered once on background
+     * looper: turns broadcasts into {@link ConnectionStateMachine} events.
+     * Broadcasts of no interest in current state are dropped before
+     * any binder call.
      */
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
-        private NetworkInfo.DetailedState lastKnownState;
         @Override
         public void onReceive(Context context, Intent intent) {
+            if(mMachine.getState() == ConnectionStateMachine.State.IDLE || isInitialStickyBroadcast()) {
+                return;
+            }
             final String action = intent.getAction();
-            if (action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
-                Log.d(TAG, "onReceive() NETWORK_STATE_CHANGED_ACTION");
+            if (action.equals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) {
+                onScanResults();
+            }
+            else if (action.equals(WifiManager.SUPPLICANT_STATE_CHANGED_ACTION)) {
+                onSupplicantState(intent);
+            }
+            else if (action.equals(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
                 NetworkInfo mInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
                 if (mInfo != null && mInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-                    Log.d(TAG, mInfo.toString());
-                    // Check macro state
-                    if(mInfo.isConnected()) {
-                        NetworkInfo.DetailedState currentState = mInfo.getDetailedState();
-                        Log.d(TAG, currentState.toString());
-                        final WifiInfo info = mWifiManager.getConnectionInfo();
-                        if(info != null) {
-                            String quotedString = StringUtils.convertToQuotedString(mSsid);
-                            boolean ssidEquals = quotedString.equals(info.getSSID());
-                            Log.d(TAG, String.format("Connected SSID %s, desired %s", info.getSSID(), mSsid));
-                            if (ssidEquals) {
-                                Log.d(TAG, "CONNECTED\n"+info.toString());
-                                setUpTimer.cancel();
-                                context.unregisterReceiver(mReceiver);
-                                if (mListener != null) {
-                                    // Delay events cause some time it is not  so "sharp"
-                                    // to assure that remote hosts are IP reachable and
-                                    // to avoid ENETUNREACH (Network is unreachable) when
-                                    // opening a socket into this handler.
-                                    // We use AsyncTask to communicate with UI thread
-                                    // during callback (i.e. Toast)
-                                    /*new AsyncTask<Integer, Void, Void>() {
-                                        protected void onPreExecute() {
-                                            // Pre Code
-                                        }
-                                        protected Void doInBackground(Integer... wait) {
-                                            try {
-                                                Thread.sleep(wait[0]);
-                                            } catch (InterruptedException e) {
-                                                e.printStackTrace();
-                                            }
-                                            return null;
-                                        }
-                                        protected void onPostExecute(Void unused) {
-                                            Log.d(TAG, "Delayed CONNECTED event");
-                                            mListener.onConnected(mWifiInfo);
-                                        }
-                                    }.execute(500);*/
-                                    generateConnectedDelayedEvent(info);
-                                }
-                            }
-                            else {
-                                Log.e(TAG, "Connect to AP but not to SSID "+mSsid);
-                                if(setUpTimer != null) {
-                                    setUpTimer.cancel();
-                                    setUpTimer = null;
-                                }
-                                context.unregisterReceiver(mReceiver);
-                                if(mListener != null) {
-                                    mListener.onDisconnected();
-                                }
-                            }
-                        }
-                        else {
-                            Log.e(TAG, "mWifiInfo is null!");
-                        }
-                    }
-                    // check detailed state
-                    else {
-                        NetworkInfo.DetailedState currentState = mInfo.getDetailedState();
-                        Log.d(TAG, currentState.toString());
-                        if(lastKnownState != null) {
-                            if(lastKnownState.equals(NetworkInfo.DetailedState.AUTHENTICATING) &&
-                                    currentState.equals(NetworkInfo.DetailedState.DISCONNECTED) ) {
-                                context.unregisterReceiver(mReceiver);
-                                if(setUpTimer != null) {
-                                    setUpTimer.cancel();
-                                    setUpTimer = null;
-                                }
-                                if(mListener != null) {
-                                    mListener.onAuthenticationError();
-                                }
-                            }
-                        }
-                        lastKnownState = currentState;
-                    }
+                    onNetworkState(mInfo);
                 }
                 else {
                     Log.e(TAG, "Network is null or not WIFI");
@@ -340,33 +927,181 @@ public class WifiConnector {
         }
     };
 
+    private void onScanResults() {
+        if(!mMachine.handles(ConnectionStateMachine.Event.SSID_FOUND)) {
+            return;
+        }
+        Log.d(TAG, "onReceive() SCAN_RESULTS_AVAILABLE_ACTION");
+        mScanResults = mWifiManager.getScanResults();
+        ScanResultCache.update(mScanResults);
+        ScanScheduler.onScanResults();
+        if (mScanResults == null) {
+            // TODO: add counter???
+            return;
+        }
+        mMetrics.mark(ConnectionMetrics.Phase.FIRST_SCAN_RESULT);
+        Log.d(TAG, mScanResults.toString());
+        for (ScanResult result : mScanResults) {
+            if (result.SSID.equals(mSsid)) {
+                mFoundResult = result;
+                fire(ConnectionStateMachine.Event.SSID_FOUND);
+                return;
+            }
+        }
+        fire(ConnectionStateMachine.Event.SSID_NOT_FOUND);
+    }
 
-    private void generateConnectedDelayedEvent(final WifiInfo info) {
-        if (mListener != null) {
-            // Delay events cause some time it is not  so "sharp"
-            // to assure that remote hosts are IP reachable and
-            // to avoid ENETUNREACH (Network is unreachable) when
-            // opening a socket into this handler.
-            // We use AsyncTask to communicate with UI thread
-            // during callback (i.e. Toast)
-            new AsyncTask<Integer, Void, Void>() {
-                protected void onPreExecute() {
-                    // Pre Code
+    /**
+     * Supplicant reports a wrong key long before network state does:
+     * an authentication error extra, or a handshake dropped to
+     * DISCONNECTED, which is how a wrong WPA key shows up.
+     */
+    private void onSupplicantState(Intent intent) {
+        if(!mMachine.handles(ConnectionStateMachine.Event.AUTHENTICATION_FAILED)) {
+            return;
+        }
+        final SupplicantState state = intent.getParcelableExtra(WifiManager.EXTRA_NEW_STATE);
+        final SupplicantState lastState = mLastSupplicantState;
+        mLastSupplicantState = state;
+        if(intent.getIntExtra(WifiManager.EXTRA_SUPPLICANT_ERROR, 0) == WifiManager.ERROR_AUTHENTICATING) {
+            Log.e(TAG, "SSID " + mSsid + " authentication error reported by supplicant");
+            fire(ConnectionStateMachine.Event.AUTHENTICATION_FAILED);
+            return;
+        }
+        if(state == SupplicantState.DISCONNECTED
+                && (lastState == SupplicantState.FOUR_WAY_HANDSHAKE || lastState == SupplicantState.GROUP_HANDSHAKE)) {
+            mHandshakeFailures++;
+            Log.w(TAG, "SSID " + mSsid + " handshake failed " + mHandshakeFailures + "/" + mMaxHandshakeFailures);
+            if(mHandshakeFailures >= mMaxHandshakeFailures) {
+                fire(ConnectionStateMachine.Event.AUTHENTICATION_FAILED);
+            }
+        }
+    }
+
+    /**
+     * Using detailed state we are able to detect some
+     * particular error as authentication error.
+     */
+    private void onNetworkState(NetworkInfo mInfo) {
+        Log.d(TAG, "onReceive() NETWORK_STATE_CHANGED_ACTION " + mInfo);
+        final NetworkInfo.DetailedState currentState = mInfo.getDetailedState();
+        final NetworkInfo.DetailedState lastKnownState = mLastDetailedState;
+        mLastDetailedState = currentState;
+        // Check macro state
+        if(mInfo.isConnected()) {
+            final WifiInfo info = mWifiManager.getConnectionInfo();
+            if(info == null) {
+                Log.e(TAG, "mWifiInfo is null!");
+                return;
+            }
+            Log.d(TAG, String.format("Connected SSID %s, desired %s", info.getSSID(), mSsid));
+            if(StringUtils.convertToQuotedString(mSsid).equals(info.getSSID())) {
+                Log.d(TAG, "CONNECTED\n" + info.toString());
+                mMetrics.mark(currentState);
+                mConnectedInfo = info;
+                fire(ConnectionStateMachine.Event.CONNECTED);
+            }
+            else {
+                fire(ConnectionStateMachine.Event.CONNECTED_OTHER);
+            }
+        }
+        // check detailed state
+        else if(currentState == NetworkInfo.DetailedState.FAILED) {
+            fire(ConnectionStateMachine.Event.ASSOCIATION_FAILED);
+        }
+        else if(lastKnownState == NetworkInfo.DetailedState.AUTHENTICATING
+                && currentState == NetworkInfo.DetailedState.DISCONNECTED) {
+            fire(ConnectionStateMachine.Event.AUTHENTICATION_FAILED);
+        }
+        else {
+            if(isAssociationExpected()) {
+                mMetrics.mark(currentState);
+            }
+            fire(ConnectionStateMachine.Event.NETWORK_CHANGED);
+        }
+    }
+
+    /**
+     * @return true if desired network has been enabled: intermediate
+     * states carry no SSID, before they can belong to any network
+     */
+    private boolean isAssociationExpected() {
+        final ConnectionStateMachine.State state = mMachine.getState();
+        return state == ConnectionStateMachine.State.FAST_PATH || state == ConnectionStateMachine.State.ASSOCIATING;
+    }
+
+
+    private void generateConnectedDelayedEvent() {
+        // Delay events cause some time it is not  so "sharp"
+        // to assure that remote hosts are IP reachable and
+        // to avoid ENETUNREACH (Network is unreachable) when
+        // opening a socket into this handler.
+        // Event is fired as soon as interface has an IPv4 address
+        // and probe target accepts a connection.
+        mProbeTask = new ProbeTask(mCurrent, new ReachabilityProbe(getProbeHost(), mProbePort, mProbeBudget));
+        getProbeExecutor().execute(mProbeTask);
+    }
+
+    /**
+     * Probe reachability on probe thread, then fire
+     * {@link ConnectionStateMachine.Event#REACHABLE} on connector looper
+     */
+    private class ProbeTask implements Runnable {
+        private final Attempt attempt;
+        private final ReachabilityProbe probe;
+
+        ProbeTask(Attempt attempt, ReachabilityProbe probe) {
+            this.attempt = attempt;
+            this.probe = probe;
+        }
+
+        void abort() {
+            probe.cancel();
+        }
+
+        @Override
+        public void run() {
+            final boolean reachable = probe.await(new ReachabilityProbe.Readiness() {
+                @Override
+                public boolean isReady() {
+                    WifiInfo current = mWifiManager.getConnectionInfo();
+                    return current != null && current.getIpAddress() != 0;
                 }
-                protected Void doInBackground(Integer... wait) {
-                    try {
-                        Thread.sleep(wait[0]);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+            });
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(attempt != mCurrent) {
+                        // cancelled or superseded
+                        return;
                     }
-                    return null;
-                }
-                protected void onPostExecute(Void unused) {
-                    Log.d(TAG, "Delayed CONNECTED event");
-                    mListener.onConnected(info);
+                    mProbeTask = null;
+                    if(reachable) {
+                        mMetrics.mark(ConnectionMetrics.Phase.REACHABLE);
+                        Log.d(TAG, "CONNECTED event, " + probe.getHost() + " reachable after " + probe.getAttempts() + " attempts");
+                    }
+                    else {
+                        mMetrics.unreachable();
+                        Log.w(TAG, "CONNECTED event, " + probe.getHost() + " not reachable");
+                    }
+                    fire(ConnectionStateMachine.Event.REACHABLE);
                 }
-            }.execute(500);
+            });
         }
     }
-}
 
+    /**
+     * Host probed before firing {@link connectorListener#onConnected(WifiInfo)}:
+     * the one set by user, otherwise the gateway, otherwise the Iotter device.
+     */
+    private String getProbeHost() {
+        if(mProbeHost != null) {
+            return mProbeHost;
+        }
+        DhcpInfo dhcp = mWifiManager.getDhcpInfo();
+        if(dhcp != null && dhcp.gateway != 0) {
+            return ReachabilityProbe.formatIpAddress(dhcp.gateway);
+        }
+        return ReachabilityProbe.DEFAULT_HOST;
+    }
+}
@@ -0,0 +1,96 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 26/02/17.
+ */
+
+/**
+ * Validation and normalization of WEP keys and WPA passphrases,
+ * done with plain char loops: no regex is compiled per credential.
+ * Hex keys go to supplicant as they are, ASCII ones quoted.
+ */
+final class WifiKeys {
+
+    private WifiKeys() {
+    }
+
+    static boolean isHex(String key) {
+        for (int i = key.length() - 1; i >= 0; i--) {
+            final char c = key.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'A' && c <= 'F' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * WEP-40, WEP-104, and some vendors using 256-bit WEP (WEP-232?)
+     */
+    static boolean isHexWepKey(String key) {
+        final int len = key.length();
+        return (len == 10 || len == 26 || len == 58) && isHex(key);
+    }
+
+    static boolean isHexPsk(String key) {
+        return key.length() == 64 && isHex(key);
+    }
+
+    /**
+     * @return true if key is a valid WEP key, hex or ASCII (5, 13 or 29 chars)
+     */
+    static boolean isValidWepKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        final int len = key.length();
+        return isHexWepKey(key) || (len == 5 || len == 13 || len == 29) && isPrintableAscii(key);
+    }
+
+    /**
+     * @return true if key is a valid WPA key, 64 hex digits or 8..63 ASCII chars
+     */
+    static boolean isValidPsk(String key) {
+        if (key == null) {
+            return false;
+        }
+        final int len = key.length();
+        return isHexPsk(key) || len >= 8 && len <= 63 && isPrintableAscii(key);
+    }
+
+    /**
+     * @return WEP key as expected by {@link android.net.wifi.WifiConfiguration#wepKeys}
+     */
+    static String normalizeWepKey(String key) {
+        return isHexWepKey(key) ? key : quote(key);
+    }
+
+    /**
+     * @return WPA key as expected by {@link android.net.wifi.WifiConfiguration#preSharedKey}
+     */
+    static String normalizePsk(String key) {
+        return isHexPsk(key) ? key : quote(key);
+    }
+
+    /**
+     * Quote a string in one allocation
+     */
+    static String quote(String s) {
+        final int len = s.length();
+        final char[] quoted = new char[len + 2];
+        quoted[0] = '"';
+        s.getChars(0, len, quoted, 1);
+        quoted[len + 1] = '"';
+        return new String(quoted);
+    }
+
+    private static boolean isPrintableAscii(String key) {
+        for (int i = key.length() - 1; i >= 0; i--) {
+            final char c = key.charAt(i);
+            if (c < 32 || c > 126) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,18 +2,12 @@ package it.this1.wificonnector.iotter.ws;
 
 import android.util.Log;
 
-import com.neovisionaries.ws.client.WebSocket;
-import com.neovisionaries.ws.client.WebSocketException;
-import com.neovisionaries.ws.client.WebSocketFactory;
-import com.neovisionaries.ws.client.WebSocketFrame;
-import com.neovisionaries.ws.client.WebSocketListener;
-import com.neovisionaries.ws.client.WebSocketState;
-
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * Created by Vittorio on 28/01/17.
@@ -22,15 +16,17 @@ import java.util.TimerTask;
 /**
  * Class that represents a generic WebSocket command/response
  * utility.
- * Manages connection state and simply its model
+ * Manages conversation state and simply its model
  * offering a listener interface to allow cascading of commands.
+ * Socket is owned by {@link IotterWsSession} and shared by all
+ * conversations addressed to the same URI.
  * It's is base on nv-websocket-client client
  * {@see <a href="https://github.com/TakahikoKawasaki/nv-websocket-client">https://github.com/TakahikoKawasaki/nv-websocket-client</a>
  *
  * To compile remember to add following to grade
  * {@code compile 'com.neovisionaries:nv-websocket-client:1.31'}*
  */
-public class IotterWsClientBase implements WebSocketListener  {
+public class IotterWsClientBase {
 
 
     /**
@@ -44,6 +40,8 @@ public class IotterWsClientBase implements WebSocketListener  {
         public class Command {
             private  String command;
             private boolean close;
+            private String id;
+            private long timeout;
             private Command() {}
 
             /**
@@ -56,6 +54,62 @@ public class IotterWsClientBase implements WebSocketListener  {
                 this.command = command;
                 this.close = close;
             }
+
+            /**
+             * Instantiates a new Command carrying a correlation id.
+             * Id is used only by {@link IottersWsPipelineCallbacks}
+             * to match the response when firmware echoes it back.
+             * Id is not put on the wire: it must be part of the command text.
+             *
+             * @param command the command
+             * @param close   the close
+             * @param id      the correlation id
+             */
+            public Command(String command, boolean close, String id) {
+                this(command, close);
+                this.id = id;
+            }
+
+            /**
+             * Instantiates a new Command with its own response deadline.
+             *
+             * @param command the command
+             * @param close   the close
+             * @param id      the correlation id, can be null
+             * @param timeout max time in ms to wait the response, 0 for default
+             */
+            public Command(String command, boolean close, String id, long timeout) {
+                this(command, close, id);
+                this.timeout = timeout;
+            }
+
+            /**
+             * @return the command text
+             */
+            public String getCommand() {
+                return command;
+            }
+
+            /**
+             * @return true if socket must be closed after sending
+             */
+            public boolean isClose() {
+                return close;
+            }
+
+            /**
+             * @return the correlation id, can be null
+             */
+            public String getId() {
+                return id;
+            }
+
+            /**
+             * @return max time in ms to wait the response, 0 for default
+             */
+            public long getTimeout() {
+                return timeout;
+            }
         }
 
         /**
@@ -66,12 +120,14 @@ public class IotterWsClientBase implements WebSocketListener  {
         public String onGetURI();
 
         /**
-         * Called when web socket is connected
+         * Called when web socket is connected and
+         * available for this conversation
          */
         public void onConnected();
 
         /**
-         * Called when web socket disconnect
+         * Called when conversation is over and web socket
+         * is released (it can be kept open for other conversations)
          */
         public void onDisconnected();
 
@@ -102,14 +158,43 @@ public class IotterWsClientBase implements WebSocketListener  {
 
         /**
          * Generated when there was none response after a command.
-         * The timeout is a default (500ms)
+         * The timeout is the one of {@link Command} or a default (1000ms)
          *
-         * @return boolean
+         * @return true socket is reopened and pending commands are sent again,
+         *         false close the conversation, socket is reopened for the next one
          */
         public boolean onCommandTimeout();
 
     }
 
+    /**
+     * Callbacks for pipelined conversations, see {@link #run(IottersWsCallbacks, int)}.
+     * Responses are matched to commands in FIFO order unless
+     * {@link #onGetCorrelationId(String)} is able to extract the id
+     * of the command from the response. Responses carrying the id of
+     * no command waiting for a response are dropped.
+     * {@link IottersWsCallbacks#onCommandResponse(String)} is not called.
+     */
+    public interface IottersWsPipelineCallbacks extends IottersWsCallbacks {
+
+        /**
+         * Called for every response to find the command it belongs to
+         *
+         * @param response the response
+         * @return id of the command as set in {@link Command}, null to match in FIFO order
+         */
+        public String onGetCorrelationId(String response);
+
+        /**
+         * Called when we receive the response of a command
+         *
+         * @param command the command matched to the response
+         * @param response the response
+         * @return true close the conversation, false continue to issue commands
+         */
+        public boolean onCommandResponse(Command command, String response);
+    }
+
     /**
      * The enum State.
      */
@@ -138,13 +223,18 @@ public class IotterWsClientBase implements WebSocketListener  {
 
 
     private static  final String TAG = "IotterWsClientBase";
-    private State currentState = State.close;
-    private Timer commandTimer = new Timer();
+    private State currentState = State.none;
     private long DEFAULT_CMD_TO = 1000;
     private final IotterWsClientBase.IottersWsCallbacks listener;
-    private WebSocket ws;
+    private final int window;
+    private final LinkedList<IottersWsCallbacks.Command> inflight = new LinkedList<IottersWsCallbacks.Command>();
+    private IotterWsSession session;
+    private final Map<IottersWsCallbacks.Command, IotterWsTimerWheel.Timeout> deadlines =
+            new IdentityHashMap<IottersWsCallbacks.Command, IotterWsTimerWheel.Timeout>();
+    private IottersWsCallbacks.Command closing;
+    private boolean closeSent;
 
-    private IotterWsClientBase() {listener = null;}
+    private IotterWsClientBase() {listener = null; window = 1;}
 
     /**
      * Instantiates a new Iotter ws client base.
@@ -152,211 +242,312 @@ public class IotterWsClientBase implements WebSocketListener  {
      * @param listener the listener
      */
     public IotterWsClientBase(IotterWsClientBase.IottersWsCallbacks listener) {
-        this.listener = listener;
+        this(listener, 1);
     }
 
     /**
-     * Static method to run a command described by {@link IottersWsCallbacks}
+     * Instantiates a new Iotter ws client base.
      *
      * @param listener the listener
+     * @param window   max number of commands waiting for a response
      */
-    public static void run(IottersWsCallbacks listener) {
-        IotterWsClientBase base = new IotterWsClientBase(listener);
-        base.execute();
+    public IotterWsClientBase(IotterWsClientBase.IottersWsCallbacks listener, int window) {
+        this.listener = listener;
+        this.window = window < 1 ? 1 : window;
     }
 
     /**
-     * Connect and execute command to web socket
+     * Static method to run a command described by {@link IottersWsCallbacks}
+     * Command is queued on the {@link IotterWsSession} bound to
+     * {@link IottersWsCallbacks#onGetURI()} so socket is shared with
+     * other commands to the same device.
+     * Commands are sent in lock-step: next command is asked
+     * only after the response of the previous one.
+     *
+     * @param listener the listener
+     * @return handle of the conversation, can be used to cancel it
      */
-    private void execute() {
-        try {
-            if(listener != null) {
-                ws = new WebSocketFactory().createSocket(listener.onGetURI(), 5000);
-                ws.addListener(this);
-
-                // Connect to the server and perform an opening handshake.
-                // This method blocks until the opening handshake is finished.
-                ws.connectAsynchronously();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "createSocket", e);
-            listener.onError(e.getLocalizedMessage());
-        } catch(IllegalArgumentException e) {
-            Log.e(TAG, "createSocket", e);
-            listener.onError(e.getLocalizedMessage());
-        }
+    public static IotterWsClientBase run(IottersWsCallbacks listener) {
+        return run(listener, 1);
     }
 
-
-    @Override
-    public void onStateChanged(WebSocket websocket, WebSocketState newState) throws Exception {
-
+    /**
+     * Static method to run commands in pipeline.
+     * {@link IottersWsCallbacks#onExecuteCommand()} is called until it
+     * returns null or window commands are waiting for a response, so
+     * commands are sent back to back without waiting a round trip each.
+     * A closing command is sent only when all previous responses
+     * are received and ends the conversation.
+     *
+     * @param listener the listener, should be a {@link IottersWsPipelineCallbacks}
+     * @param window   max number of commands waiting for a response
+     * @return handle of the conversation, can be used to cancel it
+     */
+    public static IotterWsClientBase run(IottersWsCallbacks listener, int window) {
+        IotterWsClientBase base = new IotterWsClientBase(listener, window);
+        base.execute();
+        return base;
     }
 
-    @Override
-    public void onConnected(WebSocket websocket, Map<String, List<String>> headers) throws Exception {
-        Log.d(TAG, "onConnected");
-        if(listener != null) {
-
-            listener.onConnected();
-
-            IottersWsCallbacks.Command cmd = listener.onExecuteCommand();
-            if (cmd != null && cmd.command != null) {
-                Log.d(TAG, "sending " + cmd.command);
-                ws.sendText(cmd.command);
-                currentState = State.waiting_data;
-                // Check if closing socket
-                if (cmd.close) {
-                    // need to delay socket closure.
-                    // we have seen that otherware socket is not closed
-                    // the same do not happen in onTextMessage cb
-                    new Timer().schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            ws.disconnect();
-                        }
-                    },50);
-                }
-            }
+    /**
+     * Stop the conversation. No more callbacks are fired
+     * and shared socket is left open for other conversations.
+     */
+    public void cancel() {
+        IotterWsSession s;
+        synchronized (this) {
+            s = session;
+            currentState = State.close;
+            disarm();
+        }
+        if(s != null) {
+            s.cancel(this);
         }
     }
 
-    @Override
-    public void onConnectError(WebSocket websocket, WebSocketException cause) throws Exception {
-        Log.w(TAG, "onConnectError()", cause);
-        if(listener != null) {
-            listener.onError(cause.getLocalizedMessage());
-        }
+    /**
+     * @return true if conversation is over
+     */
+    public synchronized boolean isClosed() {
+        return currentState == State.close;
     }
 
-    @Override
-    public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) throws Exception {
-        Log.d(TAG, "onDisconnected() close by server "+(closedByServer?"yes":"no"));
+    /**
+     * Queue conversation on the session of its URI
+     */
+    private void execute() {
         if(listener != null) {
-            listener.onDisconnected();
+            String uri = listener.onGetURI();
+            if(uri == null) {
+                listener.onError("invalid URI");
+                return;
+            }
+            synchronized (this) {
+                session = IotterWsSession.get(uri);
+                currentState = State.connecting;
+            }
+            session.enqueue(this);
         }
     }
 
-    @Override
-    public void onFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
+    synchronized boolean isWaiting() {
+        return currentState == State.waiting_data;
     }
 
-    @Override
-    public void onContinuationFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onTextFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-        // Log.d(TAG, "onTextFrame "+frame.toString());
-    }
-
-    @Override
-    public void onBinaryFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onCloseFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
+    /**
+     * @return number of commands still waiting for a response
+     */
+    synchronized int outstanding() {
+        return inflight.size();
     }
 
-    @Override
-    public void onPingFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
+    /**
+     * Socket is available for this conversation, start issuing commands
+     */
+    void onSessionOpen() {
+        Log.d(TAG, "onConnected");
+        synchronized (this) {
+            if(currentState == State.close) return;
+            currentState = State.connected;
+        }
+        listener.onConnected();
+        fill();
     }
 
-    @Override
-    public void onPongFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
+    /**
+     * Socket was dropped and reopened while waiting responses,
+     * commands are sent again in the same order.
+     */
+    void onSessionReopen() {
+        List<IottersWsCallbacks.Command> resend;
+        synchronized (this) {
+            if(currentState == State.close) return;
+            resend = new ArrayList<IottersWsCallbacks.Command>(inflight);
+        }
+        for(IottersWsCallbacks.Command cmd : resend) {
+            session.send(this, cmd);
+            arm(cmd);
+        }
+        fill();
     }
 
-    @Override
-    public void onTextMessage(WebSocket websocket, String text) throws Exception {
+    void onSessionText(String text) {
         Log.d(TAG, "onTextMessage " + text);
-        if(listener != null) {
-            boolean close = listener.onCommandResponse(text);
-            if(!close) {
-                // ask again if client want to process a command
-                IottersWsCallbacks.Command command = listener.onExecuteCommand();
-                if(command != null && command.command != null) {
-                    ws.sendText(command.command);
-                    currentState = State.waiting_data;
-                }
+        IottersWsCallbacks.Command cmd;
+        synchronized (this) {
+            if(currentState == State.close) return;
+            final String id = listener instanceof IottersWsPipelineCallbacks
+                    ? ((IottersWsPipelineCallbacks) listener).onGetCorrelationId(text) : null;
+            cmd = match(id);
+            if(id != null && cmd == null) {
+                Log.w(TAG, "dropped response to unknown command " + id);
+                return;
             }
-            else {
-                ws.disconnect();
+            if(cmd != null) {
+                IotterWsTimerWheel.Timeout timeout = deadlines.remove(cmd);
+                if(timeout != null) timeout.cancel();
+            }
+            if(inflight.isEmpty()) {
+                currentState = State.connected;
             }
         }
+        boolean close;
+        if(listener instanceof IottersWsPipelineCallbacks) {
+            close = ((IottersWsPipelineCallbacks) listener).onCommandResponse(cmd, text);
+        }
+        else {
+            close = listener.onCommandResponse(text);
+        }
+        if(!close) {
+            // ask again if client want to process a command
+            fill();
+        }
+        else {
+            session.release(this);
+        }
     }
 
-    @Override
-    public void onBinaryMessage(WebSocket websocket, byte[] binary) throws Exception {
-
-    }
-
-    @Override
-    public void onSendingFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onFrameSent(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onFrameUnsent(WebSocket websocket, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onError(WebSocket websocket, WebSocketException cause) throws Exception {
-        Log.e(TAG, "OnError()", cause);
-    }
-
-    @Override
-    public void onFrameError(WebSocket websocket, WebSocketException cause, WebSocketFrame frame) throws Exception {
-
-    }
-
-    @Override
-    public void onMessageError(WebSocket websocket, WebSocketException cause, List<WebSocketFrame> frames) throws Exception {
-        Log.e(TAG, "onMessageError()", cause);
+    void onSessionError(String error) {
+        synchronized (this) {
+            if(currentState == State.close) return;
+            currentState = State.close;
+            disarm();
+        }
+        listener.onError(error);
     }
 
-    @Override
-    public void onMessageDecompressionError(WebSocket websocket, WebSocketException cause, byte[] compressed) throws Exception {
-        Log.e(TAG, "onMessageDecompressionError()", cause);
+    void onSessionReleased() {
+        synchronized (this) {
+            if(currentState == State.close) return;
+            currentState = State.close;
+            disarm();
+        }
+        listener.onDisconnected();
     }
 
-    @Override
-    public void onTextMessageError(WebSocket websocket, WebSocketException cause, byte[] data) throws Exception {
-        Log.e(TAG, "onTextMessageError()", cause);
+    /**
+     * Start the response deadline of a command
+     */
+    private void arm(final IottersWsCallbacks.Command cmd) {
+        long delay = cmd.timeout > 0 ? cmd.timeout : DEFAULT_CMD_TO;
+        IotterWsTimerWheel.Timeout timeout = IotterWsTimerWheel.shared().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(cmd);
+            }
+        }, delay);
+        synchronized (this) {
+            IotterWsTimerWheel.Timeout old = deadlines.put(cmd, timeout);
+            if(old != null) old.cancel();
+            if(currentState == State.close || !inflight.contains(cmd)) {
+                // response or closure came first
+                deadlines.remove(cmd);
+                timeout.cancel();
+            }
+        }
     }
 
-    @Override
-    public void onSendError(WebSocket websocket, WebSocketException cause, WebSocketFrame frame) throws Exception {
-
+    private void disarm() {
+        for(IotterWsTimerWheel.Timeout timeout : deadlines.values()) {
+            timeout.cancel();
+        }
+        deadlines.clear();
     }
 
-    @Override
-    public void onUnexpectedError(WebSocket websocket, WebSocketException cause) throws Exception {
-        Log.e(TAG, "onUnexpectedError()", cause);
-        if(listener != null) {
-            listener.onError(cause.getLocalizedMessage());
+    private void onTimeout(IottersWsCallbacks.Command cmd) {
+        synchronized (this) {
+            if(currentState == State.close || deadlines.remove(cmd) == null) return;
+            disarm();
+        }
+        Log.w(TAG, "timeout waiting response to " + cmd.command);
+        if(listener.onCommandTimeout()) {
+            // socket could be stuck: reopen it, commands are sent again
+            // by onSessionReopen() and late responses are lost with it
+            session.recycle(this);
+        }
+        else {
+            // response would be taken by next conversation: socket is dropped
+            session.expire(this);
         }
     }
 
-    @Override
-    public void handleCallbackError(WebSocket websocket, Throwable cause) throws Exception {
-
+    /**
+     * Find the command a response belongs to: by correlation id
+     * when listener is able to extract it, otherwise the oldest one.
+     *
+     * @param id correlation id of the response, null if not known
+     * @return the command, null if none is waiting with that id
+     */
+    private IottersWsCallbacks.Command match(String id) {
+        if(id == null) {
+            return inflight.poll();
+        }
+        Iterator<IottersWsCallbacks.Command> it = inflight.iterator();
+        while(it.hasNext()) {
+            IottersWsCallbacks.Command cmd = it.next();
+            if(id.equals(cmd.id)) {
+                it.remove();
+                return cmd;
+            }
+        }
+        return null;
     }
 
-    @Override
-    public void onSendingHandshake(WebSocket websocket, String requestLine, List<String[]> headers) throws Exception {
-
+    /**
+     * Ask commands to listener until window is full.
+     */
+    private void fill() {
+        while(true) {
+            IottersWsCallbacks.Command cmd;
+            synchronized (this) {
+                if(currentState == State.close || closeSent || inflight.size() >= window) return;
+                if(closing != null) {
+                    // closing command must be the last one on the wire,
+                    // it is sent once all responses are received
+                    if(!inflight.isEmpty()) return;
+                    cmd = closing;
+                    closeSent = true;
+                    currentState = State.waiting_data;
+                }
+                else {
+                    cmd = null;
+                }
+            }
+            if(cmd != null) {
+                session.send(this, cmd);
+                return;
+            }
+            cmd = listener.onExecuteCommand();
+            synchronized (this) {
+                if(currentState == State.close) return;
+                if(cmd == null || cmd.command == null) {
+                    if(!inflight.isEmpty()) {
+                        // wait for responses before asking again
+                        return;
+                    }
+                    // nothing more to say, leave the socket to others
+                    cmd = null;
+                }
+                else if(cmd.close) {
+                    closing = cmd;
+                    continue;
+                }
+                else {
+                    if(cmd.id != null && !cmd.command.contains(cmd.id)) {
+                        // response could never be matched by id
+                        Log.w(TAG, "correlation id " + cmd.id + " not in command " + cmd.command);
+                    }
+                    currentState = State.waiting_data;
+                    inflight.add(cmd);
+                }
+            }
+            if(cmd == null) {
+                session.release(this);
+                return;
+            }
+            session.send(this, cmd);
+            arm(cmd);
+        }
     }
 
 }
@@ -0,0 +1,208 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 14/02/17.
+ */
+
+/**
+ * Registry of response decoders keyed by command name.
+ * A response is turned into an immutable typed object only once:
+ * decoded objects are kept in a small LRU cache keyed by command
+ * and response hash, so identical payloads returned while polling
+ * are not parsed again.
+ *
+ * Built-in decoders:
+ *      wifi_scan   {@link IotterWsScanResult}
+ *      wifi_st_sta {@link IotterWsStationStatus}
+ */
+public final class IotterWsResponses {
+
+    /**
+     * Turn a raw response into a typed immutable object
+     *
+     * @param <T> the decoded type
+     */
+    public interface Decoder<T> {
+        /**
+         * @param response the raw response
+         * @return the decoded object, null if response is not valid
+         */
+        public T decode(String response);
+    }
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final Map<String, Decoder<?>> decoders = new HashMap<String, Decoder<?>>();
+
+    private static final LinkedHashMap<Key, Decoded> cache = new LinkedHashMap<Key, Decoded>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Decoded> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final IotterWsScanListDecoder totalDecoder = new IotterWsScanListDecoder();
+
+    private static int hits;
+    private static int misses;
+
+    static {
+        register("wifi_scan", new Decoder<IotterWsScanResult>() {
+            private final IotterWsScanListDecoder decoder = new IotterWsScanListDecoder();
+            private final List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+
+            @Override
+            public synchronized IotterWsScanResult decode(String response) {
+                entries.clear();
+                int total = decoder.decode(response, entries, Integer.MAX_VALUE);
+                return new IotterWsScanResult(total, entries);
+            }
+        });
+        register("wifi_st_sta", new Decoder<IotterWsStationStatus>() {
+            @Override
+            public IotterWsStationStatus decode(String response) {
+                return IotterWsStationStatus.parse(response);
+            }
+        });
+    }
+
+    private IotterWsResponses() {}
+
+    /**
+     * Register (or replace) the decoder of a command
+     *
+     * @param command command name, without arguments
+     * @param decoder the decoder
+     */
+    public static void register(String command, Decoder<?> decoder) {
+        synchronized (cache) {
+            decoders.put(command, decoder);
+            // drop what was decoded by the previous decoder
+            cache.clear();
+        }
+    }
+
+    /**
+     * Decode a response
+     *
+     * @param command  the command, arguments are ignored (i.e. "wifi_scan=1")
+     * @param response the raw response
+     * @return decoded object, null if no decoder is registered
+     */
+    public static Object decode(String command, String response) {
+        if (command == null || response == null) {
+            return null;
+        }
+        final String name = commandName(command);
+        final Key key = new Key(name, response.hashCode());
+        final Decoder<?> decoder;
+        synchronized (cache) {
+            Decoded entry = cache.get(key);
+            if (entry != null && entry.response.equals(response)) {
+                hits++;
+                return entry.decoded;
+            }
+            decoder = decoders.get(name);
+            if (decoder == null) {
+                return null;
+            }
+            misses++;
+        }
+        final Object decoded = decoder.decode(response);
+        if (decoded != null) {
+            synchronized (cache) {
+                cache.put(key, new Decoded(response, decoded));
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Decode a response
+     *
+     * @param command  the command, arguments are ignored (i.e. "wifi_scan=1")
+     * @param response the raw response
+     * @param type     expected type
+     * @param <T>      the decoded type
+     * @return decoded object, null if no decoder is registered or type does not match
+     */
+    public static <T> T decode(String command, String response, Class<T> type) {
+        final Object decoded = decode(command, response);
+        return type.isInstance(decoded) ? type.cast(decoded) : null;
+    }
+
+    /**
+     * Cheap check of a wifi_scan response while polling: walk stops at
+     * &lt;total&gt;, nothing is decoded nor cached. Decode the response
+     * only when this is positive.
+     *
+     * @param response the wifi_scan response
+     * @return total declared by device, -1 if missing
+     */
+    public static int readScanTotal(String response) {
+        synchronized (totalDecoder) {
+            return totalDecoder.readTotal(response);
+        }
+    }
+
+    /**
+     * @return number of responses served from cache
+     */
+    public static int getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return number of responses actually parsed
+     */
+    public static int getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    static String commandName(String command) {
+        final int eq = command.indexOf('=');
+        return eq < 0 ? command : command.substring(0, eq);
+    }
+
+    private static final class Key {
+        private final String command;
+        private final int hash;
+
+        private Key(String command, int hash) {
+            this.command = command;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hash == that.hash && command.equals(that.command);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * command.hashCode() + hash;
+        }
+    }
+
+    private static final class Decoded {
+        private final String response;
+        private final Object decoded;
+
+        private Decoded(String response, Object decoded) {
+            this.response = response;
+            this.decoded = decoded;
+        }
+    }
+}
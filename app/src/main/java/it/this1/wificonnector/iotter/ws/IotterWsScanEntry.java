@@ -0,0 +1,81 @@
+package it.this1.wificonnector.iotter.ws;
+
+/**
+ * Created by Vittorio on 12/02/17.
+ */
+
+/**
+ * An access point seen by the device, i.e. an entry
+ * of the wifi_scan command response.
+ * Immutable.
+ */
+public class IotterWsScanEntry {
+
+    private final String ssid;
+    private final String bssid;
+    private final int rssi;
+    private final int channel;
+    private final int auth;
+
+    /**
+     * Instantiates a new scan entry.
+     *
+     * @param ssid    the ssid
+     * @param bssid   the bssid, can be null
+     * @param rssi    signal level in dBm
+     * @param channel the channel
+     * @param auth    authentication mode as reported by device
+     */
+    public IotterWsScanEntry(String ssid, String bssid, int rssi, int channel, int auth) {
+        this.ssid = ssid;
+        this.bssid = bssid;
+        this.rssi = rssi;
+        this.channel = channel;
+        this.auth = auth;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    public String getBssid() {
+        return bssid;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public int getAuth() {
+        return auth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IotterWsScanEntry)) return false;
+        IotterWsScanEntry that = (IotterWsScanEntry) o;
+        return rssi == that.rssi && channel == that.channel && auth == that.auth
+                && (ssid == null ? that.ssid == null : ssid.equals(that.ssid))
+                && (bssid == null ? that.bssid == null : bssid.equals(that.bssid));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = ssid != null ? ssid.hashCode() : 0;
+        result = 31 * result + (bssid != null ? bssid.hashCode() : 0);
+        result = 31 * result + rssi;
+        result = 31 * result + channel;
+        result = 31 * result + auth;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ssid:" + ssid + " bssid:" + bssid + " rssi:" + rssi + " channel:" + channel + " auth:" + auth;
+    }
+}
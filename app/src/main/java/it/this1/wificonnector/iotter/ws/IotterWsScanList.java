@@ -2,27 +2,47 @@ package it.this1.wificonnector.iotter.ws;
 
 import android.util.Log;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
-
-import java.io.StringReader;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Created by Vittorio on 29/01/17.
  */
 
-public class IotterWsScanList implements IotterWsClientBase.IottersWsCallbacks {
+/**
+ * Ask device to scan wifi networks and wait for the scan list.
+ * Scan list is polled with at most one request in flight: next poll
+ * is scheduled only when previous response is received.
+ * Poll schedule learns from previous scans how long device needs:
+ * first poll is sent a bit before the expected end of the scan,
+ * then polls are fast around it and back off if device is late.
+ * If device pushes the scan list (or a scan_done notification)
+ * on the open socket result is taken at once and following scans
+ * rely on push, polling only as a safety net.
+ */
+public class IotterWsScanList implements IotterWsClientBase.IottersWsCallbacks, IotterWsSession.PushListener {
 
     private static final String TAG="IotterWsScanList";
-    private String mScanList;
+    private static final String URI = "ws://192.168.4.1/web.cgi";
+    private static final String SCAN_DONE = "scan_done";
+    static final long FAST_POLL = 250;
+    static final long MAX_POLL = 2000;
+    static final long MIN_SCAN = 500;
+    static final long MAX_SCAN = 15000;
+
+    // learned from previous scans, shared by all instances
+    private static long expectedScan = 3000;
+    private static boolean pushSupported;
+
     private final int ST_INIT = 1;
     private final int ST_SCANNING = 2;
     private final int ST_RETRIEVING = 3;
+    private final int ST_DONE = 4;
     private int currentState = ST_INIT;
     private final Callbacks cb;
-    private Timer timer = new Timer();
+    private ScheduledFuture<?> timer;
+    private boolean polling;
+    private long scanStart;
+    private long backoff;
 
     public interface Callbacks {
         public void onResult(String msg);
@@ -34,9 +54,16 @@ public class IotterWsScanList implements IotterWsClientBase.IottersWsCallbacks {
         this.cb = cb;
     }
 
+    /**
+     * @return scan duration expected from previous scans in ms
+     */
+    public static synchronized long getExpectedScanTime() {
+        return expectedScan;
+    }
+
     @Override
     public String onGetURI() {
-        return "ws://192.168.4.1/web.cgi";
+        return URI;
     }
 
     @Override
@@ -46,76 +73,184 @@ public class IotterWsScanList implements IotterWsClientBase.IottersWsCallbacks {
 
     @Override
     public void onDisconnected() {
-
+        synchronized (this) {
+            if(!polling) return;
+            // poll conversation closed without a result (i.e. timeout)
+            polling = false;
+        }
+        scheduleNext();
     }
 
     @Override
     public void onError(String error) {
-        if(timer != null) timer.cancel();
+        synchronized (this) {
+            if(currentState == ST_DONE) return;
+            currentState = ST_DONE;
+            polling = false;
+            IotterWsScheduler.cancel(timer);
+        }
+        IotterWsSession.get(URI).removePushListener(this);
         cb.onError(-1);
     }
 
     @Override
-    public Command onExecuteCommand() {
+    public synchronized Command onExecuteCommand() {
         if(currentState == ST_INIT) {
             currentState = ST_SCANNING;
-            timer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    IotterWsClientBase.run(IotterWsScanList.this);
-                }
-            },3000,2000);
+            scanStart = System.nanoTime();
+            backoff = FAST_POLL;
+            IotterWsSession.get(URI).addPushListener(this);
+            timer = IotterWsScheduler.schedule(pollTask, firstPollDelay(getExpectedScanTime(), isPushSupported()));
+            // write only, session keeps socket open for push
             return new Command("wifi_scan=1", true);
         }
-        else  {
+        else if(currentState == ST_SCANNING) {
             currentState = ST_RETRIEVING;
             return new Command("wifi_scan", false);
         }
+        return null;
     }
 
     @Override
     public boolean onCommandResponse(String response) {
         Log.d(TAG, "scan list "+response);
-        // i.e. response is an XML parse it and decide if stop timer
-        try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            XmlPullParser xpp = factory.newPullParser();
-
-            String startTag = "";
-
-            xpp.setInput(new StringReader(response));
-            int eventType = xpp.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                String tagname = xpp.getName();
-                if (eventType == XmlPullParser.START_DOCUMENT) {
-                    //System.out.println("Start document");
-                } else if (eventType == XmlPullParser.START_TAG) {
-                    //System.out.println("Start tag " + xpp.getName());
-                    startTag = xpp.getName();
-                } else if (eventType == XmlPullParser.END_TAG) {
-                    //System.out.println("End tag " + xpp.getName());
-                } else if (eventType == XmlPullParser.TEXT) {
-                    //System.out.println("Text " + xpp.getText());
-                    if(startTag.equalsIgnoreCase("total")) {
-                        int total = Integer.parseInt(xpp.getText());
-                        if(total > 0) {
-                            timer.cancel();
-                            cb.onResult(response);
-                        }
-                    }
-                }
-                eventType = xpp.next();
-            }
+        synchronized (this) {
+            polling = false;
         }
-        catch(Exception e) {
-            Log.e(TAG, "onCommandResponse", e);
+        if(!complete(response)) {
+            scheduleNext();
         }
         return true;
     }
 
     @Override
     public boolean onCommandTimeout() {
+        // close poll, next one is scheduled by onDisconnected
+        return false;
+    }
+
+    @Override
+    public void onPush(String message) {
+        synchronized (this) {
+            if(currentState == ST_DONE || currentState == ST_INIT) return;
+        }
+        Log.d(TAG, "pushed "+message);
+        if(complete(message)) {
+            synchronized (IotterWsScanList.class) {
+                pushSupported = true;
+            }
+        }
+        else if(message.contains(SCAN_DONE)) {
+            synchronized (IotterWsScanList.class) {
+                pushSupported = true;
+            }
+            // device announced completion, read list now
+            synchronized (this) {
+                IotterWsScheduler.cancel(timer);
+            }
+            pollTask.run();
+        }
+    }
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (IotterWsScanList.this) {
+                if(currentState == ST_DONE || polling) return;
+                polling = true;
+                currentState = ST_SCANNING;
+            }
+            IotterWsClientBase.run(IotterWsScanList.this);
+        }
+    };
+
+    /**
+     * Check if response holds the completed scan list and notify it
+     */
+    private boolean complete(String response) {
+        // i.e. response is an XML, decode it and decide if stop polling
+        if(IotterWsResponses.readScanTotal(response) <= 0) {
+            // scan still running, no need to decode the list
+            return false;
+        }
+        IotterWsScanResult result = IotterWsResponses.decode("wifi_scan", response, IotterWsScanResult.class);
+        if(result == null || !result.isComplete()) {
+            return false;
+        }
+        long elapsed;
+        synchronized (this) {
+            if(currentState == ST_DONE) return true;
+            currentState = ST_DONE;
+            IotterWsScheduler.cancel(timer);
+            elapsed = (System.nanoTime() - scanStart) / 1000000L;
+        }
+        learn(elapsed);
+        IotterWsSession.get(URI).removePushListener(this);
+        cb.onResult(response);
         return true;
     }
+
+    private void scheduleNext() {
+        synchronized (this) {
+            if(currentState == ST_DONE) return;
+            long elapsed = (System.nanoTime() - scanStart) / 1000000L;
+            long delay = pollDelay(elapsed, getExpectedScanTime(), isPushSupported(), backoff);
+            // grows only while backing off
+            backoff = Math.max(backoff, delay);
+            timer = IotterWsScheduler.schedule(pollTask, delay);
+        }
+    }
+
+    /**
+     * Delay of next poll
+     *
+     * @param elapsed  time since scan was started in ms
+     * @param expected expected scan duration in ms
+     * @param push     true if device pushes the result
+     * @param backoff  last back off delay in ms
+     * @return the delay in ms
+     */
+    static long pollDelay(long elapsed, long expected, boolean push, long backoff) {
+        if(push) {
+            // push is the way, poll only as a safety net
+            return MAX_POLL;
+        }
+        if(elapsed < expected + expected / 4) {
+            // around expected end of scan
+            return FAST_POLL;
+        }
+        // device is late, back off
+        return Math.min(backoff * 2, MAX_POLL);
+    }
+
+    /**
+     * Delay of first poll: a bit before expected end of scan,
+     * well after it if device pushes the result.
+     */
+    static long firstPollDelay(long expected, boolean push) {
+        return push ? expected * 2 : expected * 3 / 4;
+    }
+
+    private static synchronized boolean isPushSupported() {
+        return pushSupported;
+    }
+
+    /**
+     * Exponential moving average of scan durations,
+     * clamped so one odd scan can not break next schedules.
+     */
+    private static synchronized void learn(long elapsed) {
+        expectedScan = nextExpectedScanTime(expectedScan, elapsed);
+        Log.d(TAG, "scan took "+elapsed+"ms, next expected "+expectedScan+"ms");
+    }
+
+    /**
+     * @param expected current expected scan duration in ms
+     * @param elapsed  duration of last scan in ms
+     * @return next expected scan duration in ms
+     */
+    static long nextExpectedScanTime(long expected, long elapsed) {
+        long observed = Math.max(MIN_SCAN, Math.min(MAX_SCAN, elapsed));
+        return (expected * 7 + observed * 3) / 10;
+    }
 }
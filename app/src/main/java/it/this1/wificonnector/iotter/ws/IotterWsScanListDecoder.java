@@ -0,0 +1,241 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.util.List;
+
+/**
+ * Created by Vittorio on 12/02/17.
+ */
+
+/**
+ * Streaming decoder of the scan list returned by the wifi_scan command.
+ * Response is an XML document like
+ * <pre>
+ * &lt;wifi_scan&gt;
+ *     &lt;total&gt;2&lt;/total&gt;
+ *     &lt;ap&gt;&lt;ssid&gt;Home&lt;/ssid&gt;&lt;bssid&gt;..&lt;/bssid&gt;&lt;rssi&gt;-60&lt;/rssi&gt;&lt;channel&gt;6&lt;/channel&gt;&lt;auth&gt;3&lt;/auth&gt;&lt;/ap&gt;
+ *     ...
+ * &lt;/wifi_scan&gt;
+ * </pre>
+ * Tags are matched ignoring case and the name of the entry element
+ * is not checked: every element holding ssid, bssid, rssi, channel
+ * or auth children is an entry.
+ *
+ * Document is walked once directly on the String, without any
+ * XmlPullParser or Reader, and walk stops as soon as caller has
+ * what asked for: only result objects are allocated.
+ * An instance can be reused but it is not thread safe.
+ */
+public class IotterWsScanListDecoder {
+
+    private static final String TOTAL = "total";
+    private static final String SSID = "ssid";
+    private static final String BSSID = "bssid";
+    private static final String RSSI = "rssi";
+    private static final String CHANNEL = "channel";
+    private static final String AUTH = "auth";
+
+    private String xml;
+    private int total;
+    private boolean inEntry;
+    private int ssidStart, ssidEnd;
+    private int bssidStart, bssidEnd;
+    private int rssi;
+    private int channel;
+    private int auth;
+
+    /**
+     * Read only the &lt;total&gt; field, walk stops there.
+     *
+     * @param response the wifi_scan response
+     * @return the total, -1 if not found or invalid
+     */
+    public int readTotal(String response) {
+        return walk(response, null, 0, true);
+    }
+
+    /**
+     * Decode entries of a scan list.
+     *
+     * @param response the wifi_scan response
+     * @param out      list where entries are added
+     * @param max      max number of entries to decode, walk stops once reached
+     * @return the total declared by device, or the number of entries decoded
+     * if not declared before them
+     */
+    public int decode(String response, List<IotterWsScanEntry> out, int max) {
+        return walk(response, out, max, false);
+    }
+
+    private int walk(String response, List<IotterWsScanEntry> out, int max, boolean totalOnly) {
+        xml = response;
+        total = -1;
+        int decoded = 0;
+        resetEntry();
+        if (response == null || (!totalOnly && max <= 0)) {
+            return total;
+        }
+        final int len = response.length();
+        int pos = 0;
+        while (pos < len) {
+            final int lt = response.indexOf('<', pos);
+            if (lt < 0 || lt + 1 >= len) {
+                break;
+            }
+            final char c = response.charAt(lt + 1);
+            if (c == '?' || c == '!') {
+                // prolog, comment or doctype
+                if (response.startsWith("<!--", lt)) {
+                    final int end = response.indexOf("-->", lt + 4);
+                    pos = end < 0 ? len : end + 3;
+                } else {
+                    final int end = response.indexOf('>', lt + 2);
+                    pos = end < 0 ? len : end + 1;
+                }
+                continue;
+            }
+            final boolean endTag = c == '/';
+            final int nameStart = endTag ? lt + 2 : lt + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < len && !isNameEnd(response.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            final int gt = response.indexOf('>', nameEnd);
+            if (gt < 0) {
+                break;
+            }
+            pos = gt + 1;
+            if (endTag) {
+                if (inEntry && !isField(nameStart, nameEnd)) {
+                    // closing the element that holds the fields
+                    if (out != null) {
+                        out.add(newEntry());
+                    }
+                    resetEntry();
+                    if (++decoded >= max) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            if (response.charAt(gt - 1) == '/') {
+                // empty element
+                continue;
+            }
+            // text of the element, fields have no children
+            int textEnd = response.indexOf('<', pos);
+            if (textEnd < 0) {
+                textEnd = len;
+            }
+            if (is(TOTAL, nameStart, nameEnd)) {
+                total = parseInt(pos, textEnd, -1);
+                if (totalOnly) {
+                    break;
+                }
+            } else if (totalOnly) {
+                continue;
+            } else if (is(SSID, nameStart, nameEnd)) {
+                ssidStart = pos;
+                ssidEnd = textEnd;
+                inEntry = true;
+            } else if (is(BSSID, nameStart, nameEnd)) {
+                bssidStart = pos;
+                bssidEnd = textEnd;
+                inEntry = true;
+            } else if (is(RSSI, nameStart, nameEnd)) {
+                rssi = parseInt(pos, textEnd, 0);
+                inEntry = true;
+            } else if (is(CHANNEL, nameStart, nameEnd)) {
+                channel = parseInt(pos, textEnd, 0);
+                inEntry = true;
+            } else if (is(AUTH, nameStart, nameEnd)) {
+                auth = parseInt(pos, textEnd, 0);
+                inEntry = true;
+            }
+        }
+        xml = null;
+        return total >= 0 || totalOnly ? total : decoded;
+    }
+
+    private void resetEntry() {
+        inEntry = false;
+        ssidStart = ssidEnd = 0;
+        bssidStart = bssidEnd = 0;
+        rssi = 0;
+        channel = 0;
+        auth = 0;
+    }
+
+    private IotterWsScanEntry newEntry() {
+        return new IotterWsScanEntry(text(ssidStart, ssidEnd), bssidEnd > bssidStart ? text(bssidStart, bssidEnd) : null,
+                rssi, channel, auth);
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private boolean isField(int start, int end) {
+        return is(SSID, start, end) || is(BSSID, start, end) || is(RSSI, start, end)
+                || is(CHANNEL, start, end) || is(AUTH, start, end) || is(TOTAL, start, end);
+    }
+
+    private boolean is(String name, int start, int end) {
+        return end - start == name.length() && xml.regionMatches(true, start, name, 0, name.length());
+    }
+
+    private int parseInt(int start, int end, int def) {
+        while (start < end && xml.charAt(start) <= ' ') start++;
+        while (end > start && xml.charAt(end - 1) <= ' ') end--;
+        if (start >= end) {
+            return def;
+        }
+        boolean negative = false;
+        if (xml.charAt(start) == '-') {
+            negative = true;
+            start++;
+        }
+        if (start >= end) {
+            return def;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final char c = xml.charAt(i);
+            if (c < '0' || c > '9') {
+                return def;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Text of a field, entities are decoded only if present
+     */
+    private String text(int start, int end) {
+        final int amp = xml.indexOf('&', start);
+        if (amp < 0 || amp >= end) {
+            return xml.substring(start, end);
+        }
+        final StringBuilder sb = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            final char c = xml.charAt(i);
+            if (c == '&') {
+                final int semi = xml.indexOf(';', i);
+                if (semi > i && semi < end) {
+                    if (xml.startsWith("&amp;", i)) sb.append('&');
+                    else if (xml.startsWith("&lt;", i)) sb.append('<');
+                    else if (xml.startsWith("&gt;", i)) sb.append('>');
+                    else if (xml.startsWith("&quot;", i)) sb.append('"');
+                    else if (xml.startsWith("&apos;", i)) sb.append('\'');
+                    else sb.append(xml, i, semi + 1);
+                    i = semi + 1;
+                    continue;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Created by Vittorio on 14/02/17.
+ */
+
+/**
+ * Decoded response of the wifi_scan command.
+ * Immutable, it can be shared by every consumer of the same response.
+ */
+public class IotterWsScanResult {
+
+    private final int total;
+    private final List<IotterWsScanEntry> entries;
+
+    /**
+     * Instantiates a new scan result.
+     *
+     * @param total   total declared by device
+     * @param entries the entries, list is copied
+     */
+    public IotterWsScanResult(int total, List<IotterWsScanEntry> entries) {
+        this.total = total;
+        this.entries = Collections.unmodifiableList(new ArrayList<IotterWsScanEntry>(entries));
+    }
+
+    /**
+     * @return total declared by device, -1 if missing
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return true if device completed the scan and found at least one AP
+     */
+    public boolean isComplete() {
+        return total > 0;
+    }
+
+    /**
+     * @return unmodifiable list of entries
+     */
+    public List<IotterWsScanEntry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "total:" + total + " " + entries;
+    }
+}
@@ -0,0 +1,125 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Vittorio on 08/02/17.
+ */
+
+/**
+ * Shared scheduler for every time based action of the web socket layer
+ * (delayed socket closure, polling, command timeouts).
+ * It replaces the {@link java.util.Timer} each object used to create,
+ * so thread count is bounded to {@link #POOL_SIZE} whatever the number
+ * of commands issued.
+ * Blocking socket handshakes run on their own pool of at most
+ * {@link #CONNECT_POOL_SIZE} threads, so a slow device never delays
+ * timers. Threads are daemon so they never keep the process alive.
+ */
+public final class IotterWsScheduler {
+
+    /**
+     * Max number of threads used by the scheduler
+     */
+    public static final int POOL_SIZE = 4;
+
+    /**
+     * Max number of socket handshakes running at the same time
+     */
+    public static final int CONNECT_POOL_SIZE = 4;
+    private static final long CONNECT_KEEP_ALIVE = 30 * 1000;
+
+    private static final ScheduledThreadPoolExecutor executor =
+            new ScheduledThreadPoolExecutor(POOL_SIZE, daemon("IotterWs-"));
+
+    private static final ThreadPoolExecutor connector = new ThreadPoolExecutor(
+            CONNECT_POOL_SIZE, CONNECT_POOL_SIZE, CONNECT_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), daemon("IotterWsConnect-"));
+
+    static {
+        // no idle threads once devices are configured
+        connector.allowCoreThreadTimeOut(true);
+    }
+
+    private IotterWsScheduler() {}
+
+    private static ThreadFactory daemon(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Run a task once after a delay
+     *
+     * @param task  the task
+     * @param delay delay in ms
+     * @return future to cancel the task
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task periodically, next run starts period ms after
+     * the end of the previous one so runs never overlap.
+     *
+     * @param task   the task
+     * @param delay  first run delay in ms
+     * @param period period in ms
+     * @return future to cancel the task
+     */
+    public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long period) {
+        return executor.scheduleWithFixedDelay(task, delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task as soon as possible
+     *
+     * @param task the task
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Run a blocking socket handshake, off the scheduler threads
+     *
+     * @param task the task
+     */
+    public static void connect(Runnable task) {
+        connector.execute(task);
+    }
+
+    /**
+     * @return the shared executor
+     */
+    public static ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Cancel a task scheduled by this class
+     *
+     * @param future future returned by a schedule method, can be null
+     */
+    public static void cancel(ScheduledFuture<?> future) {
+        if (future != null && future.cancel(false)) {
+            executor.purge();
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package it.this1.wificonnector.iotter.ws;
+
+import android.util.Log;
+
+import com.neovisionaries.ws.client.WebSocket;
+import com.neovisionaries.ws.client.WebSocketAdapter;
+import com.neovisionaries.ws.client.WebSocketException;
+import com.neovisionaries.ws.client.WebSocketFactory;
+import com.neovisionaries.ws.client.WebSocketFrame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Created by Vittorio on 05/02/17.
+ */
+
+/**
+ * Long-lived WebSocket session towards a single device URI.
+ * One socket is kept open per URI and shared by every
+ * {@link IotterWsClientBase} conversation addressed to it:
+ * conversations are queued and served one after the other
+ * through the same socket, so the TCP and WebSocket handshakes
+ * are paid only once instead of once per command.
+ * A conversation can keep several commands in flight, responses
+ * still due to a conversation that is over are discarded so
+ * they are not delivered to the next one.
+ *
+ * Socket is reopened on demand: when device drops it while a
+ * command is pending (up to {@link #MAX_RECONNECT} times) or when
+ * a write only command asked to close it to be applied.
+ * While a {@link PushListener} is registered write only commands
+ * do not close the socket, so pushed messages are not lost.
+ * Callbacks of conversations are collected while the session is
+ * locked and fired once it is released, so listeners can use
+ * other sessions or block without deadlocking.
+ */
+public class IotterWsSession extends WebSocketAdapter {
+
+    /**
+     * Receives messages device sends on its own, i.e. when no
+     * command is waiting for a response.
+     */
+    public interface PushListener {
+        /**
+         * @param message the message
+         */
+        public void onPush(String message);
+    }
+
+    private static final String TAG = "IotterWsSession";
+    private static final int CONNECT_TO = 5000;
+    private static final int MAX_RECONNECT = 2;
+    private static final long CLOSE_DELAY = 50;
+    private static final WebSocketFactory factory = new WebSocketFactory();
+    private static final Map<String, IotterWsSession> sessions = new HashMap<String, IotterWsSession>();
+
+    private final String uri;
+    private final LinkedList<IotterWsClientBase> clients = new LinkedList<IotterWsClientBase>();
+    private IotterWsClientBase active;
+    private IotterWsClientBase.State currentState = IotterWsClientBase.State.close;
+    private WebSocket ws;
+    private boolean closeRequested;
+    private int reconnects;
+    private int discard;
+    private final List<PushListener> pushListeners = new CopyOnWriteArrayList<PushListener>();
+    // conversation callbacks due, fired outside the lock
+    private final List<Runnable> callbacks = new ArrayList<Runnable>();
+
+    private IotterWsSession(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Get the session bound to an URI, creating it if needed.
+     *
+     * @param uri String containing URI like "ws://xyx:8000/xyz"
+     * @return the session
+     */
+    public static IotterWsSession get(String uri) {
+        synchronized (sessions) {
+            IotterWsSession session = sessions.get(uri);
+            if (session == null) {
+                session = new IotterWsSession(uri);
+                sessions.put(uri, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Close every open session, i.e. when leaving the device network.
+     */
+    public static void closeAll() {
+        final List<IotterWsSession> all;
+        synchronized (sessions) {
+            all = new LinkedList<IotterWsSession>(sessions.values());
+            sessions.clear();
+        }
+        for (IotterWsSession session : all) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return URI served by this session
+     */
+    public String getURI() {
+        return uri;
+    }
+
+    /**
+     * @return true if the underlying socket is open
+     */
+    public synchronized boolean isConnected() {
+        return currentState != IotterWsClientBase.State.close
+                && currentState != IotterWsClientBase.State.connecting;
+    }
+
+    /**
+     * Register a listener of unsolicited messages.
+     * Socket is left open between commands so device can push them.
+     *
+     * @param listener the listener
+     */
+    public void addPushListener(PushListener listener) {
+        pushListeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removePushListener(PushListener listener) {
+        pushListeners.remove(listener);
+    }
+
+    /**
+     * Drop queued conversations and close the socket.
+     * Session can be still used: next conversation reopens it.
+     */
+    public synchronized void close() {
+        clients.clear();
+        active = null;
+        if (ws != null) {
+            closeRequested = true;
+            ws.disconnect();
+        }
+    }
+
+    /**
+     * Queue a conversation, it will be started as soon as socket
+     * is available and previous conversations are done.
+     */
+    void enqueue(IotterWsClientBase client) {
+        synchronized (this) {
+            clients.add(client);
+            dispatch();
+        }
+        fireCallbacks();
+    }
+
+    /**
+     * Remove a conversation without firing any of its callbacks.
+     */
+    void cancel(IotterWsClientBase client) {
+        synchronized (this) {
+            if (active == client) {
+                active = null;
+                discard += client.outstanding();
+                dispatch();
+            } else {
+                clients.remove(client);
+            }
+        }
+        fireCallbacks();
+    }
+
+    /**
+     * Write a command on behalf of the active conversation.
+     */
+    void send(IotterWsClientBase client, IotterWsClientBase.IottersWsCallbacks.Command cmd) {
+        synchronized (this) {
+            if (client != active || ws == null) {
+                Log.w(TAG, "send() ignored, conversation is not active");
+                return;
+            }
+            Log.d(TAG, "sending " + cmd.getCommand());
+            ws.sendText(cmd.getCommand());
+            currentState = IotterWsClientBase.State.waiting_data;
+            // Check if closing socket
+            if (cmd.isClose() && !pushListeners.isEmpty()) {
+                // device is expected to push on this socket, keep it open:
+                // write only command just ends the conversation
+                releaseLocked(client);
+            } else if (cmd.isClose()) {
+                // need to delay socket closure.
+                // we have seen that otherware socket is not closed
+                closeRequested = true;
+                final WebSocket closing = ws;
+                IotterWsScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        closing.disconnect();
+                    }
+                }, CLOSE_DELAY);
+            }
+        }
+        fireCallbacks();
+    }
+
+    /**
+     * Drop the socket while the active conversation waits a response,
+     * it is reopened and pending commands are sent again.
+     * If socket is still being opened the conversation fails:
+     * its deadlines are over, nothing else would end it.
+     */
+    void recycle(IotterWsClientBase client) {
+        final WebSocket connecting;
+        synchronized (this) {
+            if (client != active) {
+                return;
+            }
+            if (ws != null && currentState != IotterWsClientBase.State.connecting) {
+                Log.w(TAG, "recycling socket of " + uri);
+                ws.disconnect();
+                return;
+            }
+            Log.w(TAG, "socket of " + uri + " not opened in time");
+            connecting = ws;
+            reset();
+            error(client, "connection timeout");
+            dispatch();
+        }
+        if (connecting != null) {
+            // its callbacks are ignored from now on
+            connecting.disconnect();
+        }
+        fireCallbacks();
+    }
+
+    /**
+     * A command of the active conversation got no response and the
+     * conversation is over. The response may come late or never, so
+     * it can not be counted as one to discard: the socket is dropped
+     * and next conversation gets a new one.
+     */
+    void expire(IotterWsClientBase client) {
+        synchronized (this) {
+            if (client != active) {
+                return;
+            }
+            if (ws != null) {
+                Log.w(TAG, "dropping socket of " + uri + " after timeout");
+                // onDisconnected() dispatches next conversation
+                closeRequested = true;
+                ws.disconnect();
+            }
+            releaseLocked(client);
+        }
+        fireCallbacks();
+    }
+
+    /**
+     * Active conversation is over, move to the next one.
+     */
+    void release(IotterWsClientBase client) {
+        synchronized (this) {
+            releaseLocked(client);
+        }
+        fireCallbacks();
+    }
+
+    private void releaseLocked(final IotterWsClientBase client) {
+        if (client != active) {
+            return;
+        }
+        active = null;
+        discard += client.outstanding();
+        if (currentState == IotterWsClientBase.State.waiting_data) {
+            currentState = IotterWsClientBase.State.connected;
+        }
+        callbacks.add(new Runnable() {
+            @Override
+            public void run() {
+                client.onSessionReleased();
+            }
+        });
+        dispatch();
+    }
+
+    private void dispatch() {
+        if (active != null || clients.isEmpty()) {
+            return;
+        }
+        if (closeRequested) {
+            // wait for socket closure, onDisconnected will dispatch again
+            return;
+        }
+        active = clients.poll();
+        if (currentState == IotterWsClientBase.State.close) {
+            connect();
+        } else if (currentState != IotterWsClientBase.State.connecting) {
+            open(active, false);
+        }
+    }
+
+    private void open(final IotterWsClientBase client, final boolean reopen) {
+        callbacks.add(new Runnable() {
+            @Override
+            public void run() {
+                if (reopen) {
+                    client.onSessionReopen();
+                } else {
+                    client.onSessionOpen();
+                }
+            }
+        });
+    }
+
+    private void error(final IotterWsClientBase client, final String error) {
+        callbacks.add(new Runnable() {
+            @Override
+            public void run() {
+                client.onSessionError(error);
+            }
+        });
+    }
+
+    /**
+     * Fire the callbacks collected so far, must be called without the lock
+     */
+    private void fireCallbacks() {
+        while (true) {
+            final Runnable[] due;
+            synchronized (this) {
+                if (callbacks.isEmpty()) {
+                    return;
+                }
+                due = callbacks.toArray(new Runnable[callbacks.size()]);
+                callbacks.clear();
+            }
+            for (Runnable callback : due) {
+                callback.run();
+            }
+        }
+    }
+
+    private void connect() {
+        try {
+            final WebSocket socket = factory.createSocket(uri, CONNECT_TO);
+            ws = socket;
+            ws.addListener(this);
+            currentState = IotterWsClientBase.State.connecting;
+            // handshake runs on the connect pool, never on the timer threads.
+            // connect(ExecutorService) would lose its failure in the returned
+            // Future, the blocking connect() is used so it reaches onConnectError()
+            IotterWsScheduler.connect(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket.connect();
+                    } catch (WebSocketException e) {
+                        connectFailed(socket, e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "createSocket", e);
+            fail(e.getLocalizedMessage());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "createSocket", e);
+            fail(e.getLocalizedMessage());
+        }
+    }
+
+    private void connectFailed(WebSocket websocket, WebSocketException cause) {
+        try {
+            onConnectError(websocket, cause);
+        } catch (Exception e) {
+            Log.e(TAG, "onConnectError()", e);
+        }
+    }
+
+    /**
+     * Forget the socket and the active conversation
+     *
+     * @return the conversation that was active, can be null
+     */
+    private IotterWsClientBase reset() {
+        ws = null;
+        currentState = IotterWsClientBase.State.close;
+        closeRequested = false;
+        reconnects = 0;
+        discard = 0;
+        IotterWsClientBase client = active;
+        active = null;
+        return client;
+    }
+
+    private void fail(String error) {
+        IotterWsClientBase client = reset();
+        if (client != null) {
+            error(client, error);
+        }
+        dispatch();
+    }
+
+    @Override
+    public void onConnected(WebSocket websocket, Map<String, List<String>> headers) throws Exception {
+        synchronized (this) {
+            if (websocket != ws) {
+                return;
+            }
+            Log.d(TAG, "onConnected " + uri);
+            currentState = IotterWsClientBase.State.connected;
+            if (active == null) {
+                dispatch();
+            } else {
+                open(active, reconnects > 0);
+            }
+        }
+        fireCallbacks();
+    }
+
+    @Override
+    public void onConnectError(WebSocket websocket, WebSocketException cause) throws Exception {
+        synchronized (this) {
+            if (websocket != ws) {
+                return;
+            }
+            Log.w(TAG, "onConnectError()", cause);
+            fail(cause.getLocalizedMessage());
+        }
+        fireCallbacks();
+    }
+
+    @Override
+    public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) throws Exception {
+        synchronized (this) {
+            if (websocket != ws) {
+                return;
+            }
+            Log.d(TAG, "onDisconnected() close by server " + (closedByServer ? "yes" : "no"));
+            ws = null;
+            // responses still due are lost with the socket
+            discard = 0;
+            currentState = IotterWsClientBase.State.close;
+            if (closeRequested) {
+                closeRequested = false;
+                reconnects = 0;
+                // write only command has been applied, conversation is over
+                if (active != null) {
+                    releaseLocked(active);
+                } else {
+                    dispatch();
+                }
+            } else if (active != null && active.isWaiting() && reconnects < MAX_RECONNECT) {
+                reconnects++;
+                Log.w(TAG, "connection dropped, reconnecting (" + reconnects + ")");
+                connect();
+            } else if (active != null) {
+                fail("connection lost");
+            } else {
+                reconnects = 0;
+            }
+        }
+        fireCallbacks();
+    }
+
+    @Override
+    public void onTextMessage(WebSocket websocket, String text) throws Exception {
+        final IotterWsClientBase client;
+        final boolean push;
+        synchronized (this) {
+            if (websocket != ws) {
+                return;
+            }
+            reconnects = 0;
+            if (discard > 0) {
+                discard--;
+                Log.d(TAG, "discarded late response " + text);
+                return;
+            }
+            client = active;
+            if (client != null && client.outstanding() > 0) {
+                push = false;
+            } else {
+                push = !pushListeners.isEmpty();
+                if (client == null && !push) {
+                    Log.w(TAG, "unsolicited message " + text);
+                    return;
+                }
+            }
+        }
+        if (push) {
+            for (PushListener listener : pushListeners) {
+                listener.onPush(text);
+            }
+        } else {
+            client.onSessionText(text);
+        }
+    }
+
+    @Override
+    public void onError(WebSocket websocket, WebSocketException cause) throws Exception {
+        Log.e(TAG, "OnError()", cause);
+    }
+
+    @Override
+    public void onUnexpectedError(WebSocket websocket, WebSocketException cause) throws Exception {
+        Log.e(TAG, "onUnexpectedError()", cause);
+        synchronized (this) {
+            if (websocket != ws || active == null) {
+                return;
+            }
+            // conversation is over, responses still due to it are not delivered
+            final IotterWsClientBase client = active;
+            active = null;
+            discard += client.outstanding();
+            if (currentState == IotterWsClientBase.State.waiting_data) {
+                currentState = IotterWsClientBase.State.connected;
+            }
+            error(client, cause.getLocalizedMessage());
+            dispatch();
+        }
+        fireCallbacks();
+    }
+}
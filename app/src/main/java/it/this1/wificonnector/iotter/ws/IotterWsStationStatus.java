@@ -0,0 +1,113 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by Vittorio on 14/02/17.
+ */
+
+/**
+ * Decoded response of the wifi_st_sta command.
+ * Every leaf element of the XML response is kept as a field
+ * named by its tag (lower case).
+ * Immutable, it can be shared by every consumer of the same response.
+ */
+public class IotterWsStationStatus {
+
+    private final Map<String, String> fields;
+
+    /**
+     * Instantiates a new station status.
+     *
+     * @param fields tag to text map, map is copied
+     */
+    public IotterWsStationStatus(Map<String, String> fields) {
+        this.fields = Collections.unmodifiableMap(new HashMap<String, String>(fields));
+    }
+
+    /**
+     * Decode a wifi_st_sta response.
+     *
+     * @param response the response
+     * @return the status
+     */
+    public static IotterWsStationStatus parse(String response) {
+        final Map<String, String> fields = new HashMap<String, String>();
+        final int len = response == null ? 0 : response.length();
+        int pos = 0;
+        while (pos < len) {
+            final int lt = response.indexOf('<', pos);
+            if (lt < 0 || lt + 1 >= len) {
+                break;
+            }
+            final int gt = response.indexOf('>', lt);
+            if (gt < 0) {
+                break;
+            }
+            pos = gt + 1;
+            final char c = response.charAt(lt + 1);
+            if (c == '/' || c == '?' || c == '!' || response.charAt(gt - 1) == '/') {
+                continue;
+            }
+            int nameEnd = lt + 1;
+            while (nameEnd < gt && response.charAt(nameEnd) > ' ') {
+                nameEnd++;
+            }
+            final int nameLength = nameEnd - lt - 1;
+            final int textEnd = response.indexOf('<', pos);
+            // a leaf is an element whose text is followed by its own end tag
+            if (textEnd > 0 && response.startsWith("</", textEnd)
+                    && response.regionMatches(textEnd + 2, response, lt + 1, nameLength)
+                    && isEndTagClosed(response, textEnd + 2 + nameLength)) {
+                fields.put(response.substring(lt + 1, nameEnd).toLowerCase(), response.substring(pos, textEnd).trim());
+            }
+        }
+        return new IotterWsStationStatus(fields);
+    }
+
+    /**
+     * @return true if end tag name ends at index, i.e. &lt;/ssid&gt; is not &lt;/ssidx&gt;
+     */
+    private static boolean isEndTagClosed(String response, int index) {
+        return index < response.length() && (response.charAt(index) == '>' || response.charAt(index) <= ' ');
+    }
+
+    /**
+     * @return unmodifiable map of fields
+     */
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @param name tag name
+     * @return text of the field, null if missing
+     */
+    public String getField(String name) {
+        return fields.get(name.toLowerCase());
+    }
+
+    /**
+     * @param name tag name
+     * @param def  value returned if field is missing or not a number
+     * @return the field as int
+     */
+    public int getInt(String name, int def) {
+        final String value = getField(name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fields.toString();
+    }
+}
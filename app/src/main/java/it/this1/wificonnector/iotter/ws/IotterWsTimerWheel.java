@@ -0,0 +1,174 @@
+package it.this1.wificonnector.iotter.ws;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Created by Vittorio on 10/02/17.
+ */
+
+/**
+ * Hashed timer wheel used to track command deadlines.
+ * Timeouts are hashed in {@link #WHEEL_SIZE} buckets by their
+ * expiration tick, so arming and cancelling a timeout is O(1)
+ * whatever the number of outstanding commands: thousands of
+ * commands across devices cost a list node each.
+ * Resolution is {@link #TICK} ms, wheel is advanced by the
+ * {@link IotterWsScheduler} only while timeouts are pending.
+ */
+class IotterWsTimerWheel {
+
+    private static final String TAG = "IotterWsTimerWheel";
+    static final long TICK = 50;
+    static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static final IotterWsTimerWheel shared = new IotterWsTimerWheel();
+
+    /**
+     * A pending timeout, a node of a bucket list
+     */
+    class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean armed = true;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Disarm the timeout
+         *
+         * @return true if it was still pending
+         */
+        boolean cancel() {
+            synchronized (IotterWsTimerWheel.this) {
+                if (!armed) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+    }
+
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private long tick;
+    private long startTime;
+    private int pending;
+    private ScheduledFuture<?> ticker;
+
+    static IotterWsTimerWheel shared() {
+        return shared;
+    }
+
+    /**
+     * Arm a timeout
+     *
+     * @param task  task to run on expiration, runs on scheduler thread
+     * @param delay delay in ms
+     * @return the timeout, to be cancelled if no more needed
+     */
+    synchronized Timeout newTimeout(Runnable task, long delay) {
+        if (ticker == null) {
+            startTime = System.nanoTime();
+            tick = 0;
+            ticker = IotterWsScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    advance();
+                }
+            }, TICK, TICK);
+        }
+        // round up so a timeout never fires before its delay
+        final long tickNanos = TICK * 1000000L;
+        long deadline = (System.nanoTime() - startTime + delay * 1000000L + tickNanos - 1) / tickNanos;
+        if (deadline <= tick) {
+            deadline = tick + 1;
+        }
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = (deadline - tick - 1) / WHEEL_SIZE;
+        timeout.bucket = (int) (deadline & MASK);
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * @return number of armed timeouts
+     */
+    synchronized int size() {
+        return pending;
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - startTime) / (TICK * 1000000L);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.armed = false;
+        pending--;
+    }
+
+    /**
+     * Process every bucket elapsed since last run, scheduler can be late
+     */
+    private void advance() {
+        List<Runnable> expired = null;
+        synchronized (this) {
+            long now = elapsedTicks();
+            while (tick < now) {
+                tick++;
+                Timeout timeout = buckets[(int) (tick & MASK)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds <= 0) {
+                        unlink(timeout);
+                        if (expired == null) {
+                            expired = new ArrayList<Runnable>();
+                        }
+                        expired.add(timeout.task);
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+            }
+            if (pending == 0) {
+                IotterWsScheduler.cancel(ticker);
+                ticker = null;
+            }
+        }
+        if (expired != null) {
+            for (Runnable task : expired) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // never let a task stop the wheel
+                    Log.e(TAG, "timeout task", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import it.this1.wificonnector.iotter.wifi.ConnectionStateMachine.Action;
+import it.this1.wificonnector.iotter.wifi.ConnectionStateMachine.Event;
+import it.this1.wificonnector.iotter.wifi.ConnectionStateMachine.State;
+import it.this1.wificonnector.iotter.wifi.ConnectionStateMachine.Transition;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transitions of a connection attempt.
+ */
+public class ConnectionStateMachineTest {
+
+    @Test
+    public void fastPath_fallsBackToScanOnFailure() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        assertEquals(Action.WAIT_FAST_PATH, machine.fire(Event.KNOWN_NETWORK_ENABLED).action);
+        // still on previous network
+        assertNull(machine.fire(Event.CONNECTED_OTHER));
+        assertEquals(State.FAST_PATH, machine.getState());
+        Transition transition = machine.fire(Event.ASSOCIATION_FAILED);
+        assertEquals(State.FAST_PATH, transition.from);
+        assertEquals(State.SCANNING, transition.to);
+        assertEquals(Action.SCAN, transition.action);
+    }
+
+    @Test
+    public void scan_connectsAndProbes() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        assertEquals(Action.SCAN, machine.fire(Event.SCAN_NEEDED).action);
+        assertEquals(Action.RESCAN, machine.fire(Event.NETWORK_CHANGED).action);
+        assertEquals(Action.CONNECT_TO_RESULT, machine.fire(Event.SSID_FOUND).action);
+        assertFalse(machine.handles(Event.SSID_FOUND));
+        assertEquals(Action.PROBE, machine.fire(Event.CONNECTED).action);
+        // setup timeout is over once connected
+        assertNull(machine.fire(Event.TIMEOUT));
+        assertEquals(Action.REPORT_CONNECTED, machine.fire(Event.REACHABLE).action);
+        assertEquals(State.IDLE, machine.getState());
+    }
+
+    @Test
+    public void otherNetwork_afterConfiguration_isDisconnection() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        machine.fire(Event.SCAN_NEEDED);
+        machine.fire(Event.SSID_FOUND);
+        assertEquals(Action.REPORT_DISCONNECTED, machine.fire(Event.CONNECTED_OTHER).action);
+        assertEquals(State.IDLE, machine.getState());
+    }
+
+    @Test
+    public void pendingStates_timeOutToIdle() {
+        for (State state : new State[]{State.FAST_PATH, State.SCANNING, State.ASSOCIATING}) {
+            Transition transition = ConnectionStateMachine.get(state, Event.TIMEOUT);
+            assertEquals(State.IDLE, transition.to);
+            assertEquals(Action.REPORT_TIMEOUT, transition.action);
+        }
+    }
+
+    @Test
+    public void idle_ignoresNetworkEvents() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        for (Event event : Event.values()) {
+            if (event != Event.KNOWN_NETWORK_ENABLED && event != Event.SCAN_NEEDED) {
+                assertNull(machine.fire(event));
+            }
+        }
+        assertEquals(State.IDLE, machine.getState());
+    }
+
+    @Test
+    public void reset_returnsStateLeft() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        machine.fire(Event.SCAN_NEEDED);
+        assertEquals(State.SCANNING, machine.reset());
+        assertEquals(State.IDLE, machine.getState());
+    }
+}
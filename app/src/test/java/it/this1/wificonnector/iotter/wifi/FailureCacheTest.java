@@ -0,0 +1,43 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expiry and keys of recent failures, with explicit clock.
+ */
+public class FailureCacheTest {
+
+    @After
+    public void tearDown() {
+        FailureCache.clear();
+    }
+
+    @Test
+    public void authenticationFailure_isKeyedByPassword() {
+        FailureCache.record(FailureCache.Failure.AUTHENTICATION, "iotter", "wrongpass", 1000);
+        assertEquals(FailureCache.Failure.AUTHENTICATION, FailureCache.find("iotter", "wrongpass", 2000));
+        assertNull(FailureCache.find("iotter", "rightpass", 2000));
+        assertNull(FailureCache.find("other", "wrongpass", 2000));
+    }
+
+    @Test
+    public void ssidNotFound_expiresFirst() {
+        FailureCache.record(FailureCache.Failure.AUTHENTICATION, "iotter", "wrongpass", 0);
+        FailureCache.record(FailureCache.Failure.SSID_NOT_FOUND, "gone", "anypass1", 0);
+        assertEquals(FailureCache.Failure.SSID_NOT_FOUND, FailureCache.find("gone", "otherpass", 1000));
+        assertNull(FailureCache.find("gone", "otherpass", FailureCache.SSID_NOT_FOUND_TTL));
+        assertEquals(FailureCache.Failure.AUTHENTICATION, FailureCache.find("iotter", "wrongpass", FailureCache.SSID_NOT_FOUND_TTL));
+        assertNull(FailureCache.find("iotter", "wrongpass", FailureCache.AUTHENTICATION_TTL));
+    }
+
+    @Test
+    public void forget_dropsBothFailures() {
+        FailureCache.record(FailureCache.Failure.AUTHENTICATION, "iotter", "wrongpass", 0);
+        FailureCache.record(FailureCache.Failure.SSID_NOT_FOUND, "iotter", "wrongpass", 0);
+        FailureCache.forget("iotter", "wrongpass");
+        assertNull(FailureCache.find("iotter", "wrongpass", 1));
+    }
+}
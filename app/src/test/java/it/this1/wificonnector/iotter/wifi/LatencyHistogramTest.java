@@ -0,0 +1,89 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucket math and percentiles of the latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValues_haveOwnBucket() {
+        for (int v = 0; v < LatencyHistogram.SUB_BUCKETS; v++) {
+            assertEquals(v, LatencyHistogram.index(v));
+            assertEquals(v, LatencyHistogram.upperBound(v));
+        }
+    }
+
+    @Test
+    public void bucketBoundaries_coverEveryValueOnce() {
+        // first linear buckets after the exact ones have width 1, then 2...
+        assertEquals(16, LatencyHistogram.index(16));
+        assertEquals(31, LatencyHistogram.index(31));
+        assertEquals(32, LatencyHistogram.index(32));
+        assertEquals(32, LatencyHistogram.index(33));
+        assertEquals(33, LatencyHistogram.upperBound(32));
+        for (int exponent = 4; exponent <= LatencyHistogram.MAX_EXPONENT; exponent++) {
+            final long power = 1L << exponent;
+            for (long v : new long[]{power - 1, power, power + 1, power + power / 2}) {
+                checkBucket(v);
+            }
+        }
+        for (long v = 1; v < 5000; v++) {
+            checkBucket(v);
+        }
+    }
+
+    private static void checkBucket(long v) {
+        final int index = LatencyHistogram.index(v);
+        assertTrue(index < LatencyHistogram.BUCKETS);
+        // value is in its bucket and not in the previous one
+        assertTrue(LatencyHistogram.upperBound(index) >= v);
+        assertTrue(LatencyHistogram.upperBound(index - 1) < v);
+        // about 6% precision
+        assertTrue(LatencyHistogram.upperBound(index) - v <= v / LatencyHistogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void percentiles_areBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getMean());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        // 50 is in bucket 50..51
+        assertEquals(51, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        // bucket of 100 ends at 103, capped to max
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void overflow_isKeptInLastBucket() {
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(1L << 50);
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(1L << 50, histogram.getValueAtPercentile(100));
+        assertEquals(1L << 50, histogram.getMax());
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMin());
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
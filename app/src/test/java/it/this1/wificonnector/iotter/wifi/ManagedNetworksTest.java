@@ -0,0 +1,177 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Registry of managed networks on in-memory preferences, with explicit clock.
+ */
+public class ManagedNetworksTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private final FakePreferences prefs = new FakePreferences();
+
+    @Test
+    public void touch_recordsNetworkBySsidAndSecurity() {
+        ManagedNetworks.touch(prefs, "\"iotter\"", "WPA_PSK", 1000);
+        assertTrue(ManagedNetworks.isManaged(prefs, "\"iotter\"", "WPA_PSK"));
+        assertFalse(ManagedNetworks.isManaged(prefs, "\"iotter\"", "WEP"));
+        assertFalse(ManagedNetworks.isManaged(prefs, "\"other\"", "WPA_PSK"));
+    }
+
+    @Test
+    public void touchIfManaged_ignoresNetworksNotOurs() {
+        ManagedNetworks.touchIfManaged(prefs, "\"home\"", "WPA_PSK", 1000);
+        assertFalse(ManagedNetworks.isManaged(prefs, "\"home\"", "WPA_PSK"));
+        assertTrue(prefs.values.isEmpty());
+    }
+
+    @Test
+    public void touchIfManaged_refreshesLastUse() {
+        ManagedNetworks.touch(prefs, "\"iotter\"", "WPA_PSK", 1000);
+        ManagedNetworks.touchIfManaged(prefs, "\"iotter\"", "WPA_PSK", 5000);
+        assertEquals(1, prefs.values.size());
+        assertEquals(5000L, prefs.values.values().iterator().next());
+    }
+
+    @Test
+    public void cleanUp_isDueOncePerDay() {
+        assertTrue(ManagedNetworks.isCleanUpDue(prefs, DAY + 1));
+        prefs.edit().putLong("last_cleanup", DAY).apply();
+        assertFalse(ManagedNetworks.isCleanUpDue(prefs, 2 * DAY));
+        assertTrue(ManagedNetworks.isCleanUpDue(prefs, 2 * DAY + 1));
+    }
+
+    @Test
+    public void stale_onlyOursAndOlderThanMaxAge() {
+        assertFalse(ManagedNetworks.isStale(-1, 10 * DAY, DAY));
+        assertFalse(ManagedNetworks.isStale(9 * DAY, 10 * DAY, DAY));
+        assertTrue(ManagedNetworks.isStale(8 * DAY, 10 * DAY, DAY));
+    }
+
+    /**
+     * Preferences kept in a map, edits applied immediately
+     */
+    private static class FakePreferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<String, Object>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return values.containsKey(key) ? (Long) values.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return values.containsKey(key) ? (Float) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    values.remove(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    values.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renumbering of priorities when the maximum is reached.
+ */
+public class PriorityAllocatorTest {
+
+    @Test
+    public void topRun_movesBelowTop_othersUnchanged() {
+        int[] assigned = PriorityAllocator.renumber(new int[]{1005, 1003, 1001, 500, 0}, 1000);
+        assertArrayEquals(new int[]{999, 998, 997, 500, 0}, assigned);
+        assertEquals(3, changed(new int[]{1005, 1003, 1001, 500, 0}, assigned));
+    }
+
+    @Test
+    public void ties_areKept() {
+        int[] assigned = PriorityAllocator.renumber(new int[]{1005, 1005, 1001, 1001, 3}, 1000);
+        assertArrayEquals(new int[]{999, 999, 998, 998, 3}, assigned);
+    }
+
+    @Test
+    public void denseRun_pushesNetworksBelow_keepingOrder() {
+        int[] assigned = PriorityAllocator.renumber(new int[]{12, 11, 10, 9, 8, 2}, 10);
+        assertArrayEquals(new int[]{9, 8, 7, 6, 5, 2}, assigned);
+        assertStrictlyDescending(assigned);
+    }
+
+    @Test
+    public void runBelowZero_renumbersEverythingFromZero() {
+        // moving the run down would collapse 5 and 0
+        assertArrayEquals(new int[]{4, 3, 2, 1, 1, 0}, PriorityAllocator.renumber(new int[]{8, 7, 6, 5, 5, 0}, 4));
+    }
+
+    @Test
+    public void nothingAboveTop_isUnchanged() {
+        int[] priorities = {10, 5, 0};
+        assertArrayEquals(priorities, PriorityAllocator.renumber(priorities, 100));
+    }
+
+    private static int changed(int[] before, int[] after) {
+        int count = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != after[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertStrictlyDescending(int[] priorities) {
+        for (int i = 1; i < priorities.length; i++) {
+            assertTrue(priorities[i - 1] > priorities[i]);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PSK derivation checked against IEEE 802.11i-2004 Annex H.4 test vectors.
+ */
+public class PskCacheTest {
+
+    @Test
+    public void derive_matchesVector1() {
+        assertEquals("f42c6fc52df0ebef9ebb4b90b38a5f902e83fe1b135a70e23aed762e9710a12e",
+                PskCache.toHex(PskCache.derive("password", "IEEE")));
+    }
+
+    @Test
+    public void derive_matchesVector2() {
+        assertEquals("0dc0d6eb90555ed6419756b9a15ec3e3209b63df707dd508d14581f8982721af",
+                PskCache.toHex(PskCache.derive("ThisIsAPassword", "ThisIsASSID")));
+    }
+
+    @Test
+    public void derive_matchesVector3() {
+        assertEquals("becb93866bb8c3832cb777c2f559807c8c59afcb6eae734885001300a981cc62",
+                PskCache.toHex(PskCache.derive("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "ZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZ")));
+    }
+
+    @Test
+    public void getOrDerive_isCached() {
+        assertNull(PskCache.get("CacheSSID", "cachepassword"));
+        long derivations = PskCache.getDerivations();
+        String key = PskCache.getOrDerive("CacheSSID", "cachepassword");
+        assertEquals(64, key.length());
+        assertEquals(key, PskCache.getOrDerive("CacheSSID", "cachepassword"));
+        assertEquals(derivations + 1, PskCache.getDerivations());
+        assertNull(PskCache.get("OtherSSID", "cachepassword"));
+    }
+
+    @Test
+    public void invalidPassphrase_isNotDerived() {
+        assertNull(PskCache.getOrDerive("CacheSSID", "short"));
+        assertNull(PskCache.getOrDerive("CacheSSID", "f42c6fc52df0ebef9ebb4b90b38a5f902e83fe1b135a70e23aed762e9710a12e"));
+    }
+}
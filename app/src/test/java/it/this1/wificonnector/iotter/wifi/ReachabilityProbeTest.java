@@ -0,0 +1,69 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Probe a local TCP server standing in for the device.
+ */
+public class ReachabilityProbeTest {
+
+    @Test
+    public void listeningHost_isReachableAtOnce() throws Exception {
+        ServerSocket server = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        try {
+            ReachabilityProbe probe = new ReachabilityProbe("127.0.0.1", server.getLocalPort(), 2000);
+            long start = System.nanoTime();
+            assertTrue(probe.await(null));
+            assertEquals(1, probe.getAttempts());
+            assertTrue((System.nanoTime() - start) / 1000000L < 500);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void probe_waitsForAddress() throws Exception {
+        ServerSocket server = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        try {
+            final AtomicInteger checks = new AtomicInteger();
+            ReachabilityProbe probe = new ReachabilityProbe("127.0.0.1", server.getLocalPort(), 2000);
+            // address is assigned at third check
+            assertTrue(probe.await(new ReachabilityProbe.Readiness() {
+                @Override
+                public boolean isReady() {
+                    return checks.incrementAndGet() >= 3;
+                }
+            }));
+            assertEquals(3, checks.get());
+            assertEquals(1, probe.getAttempts());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void closedPort_givesUpWithinBudget() throws Exception {
+        ServerSocket server = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+
+        ReachabilityProbe probe = new ReachabilityProbe("127.0.0.1", port, 600);
+        long start = System.nanoTime();
+        assertFalse(probe.await(null));
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        assertTrue(probe.getAttempts() > 1);
+        assertTrue("elapsed " + elapsed, elapsed >= 550 && elapsed < 1500);
+    }
+
+    @Test
+    public void formatIpAddress_isLittleEndian() {
+        // 192.168.4.1 as returned by DhcpInfo
+        assertEquals("192.168.4.1", ReachabilityProbe.formatIpAddress(0x0104a8c0));
+    }
+}
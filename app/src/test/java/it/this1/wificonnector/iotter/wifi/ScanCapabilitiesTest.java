@@ -0,0 +1,47 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Capabilities strings as reported by different Android releases.
+ */
+public class ScanCapabilitiesTest {
+
+    @Test
+    public void mixedWpaWpa2_setsBothPskTypes() {
+        int flags = ScanCapabilities.parse("[WPA-PSK-CCMP+TKIP][WPA2-PSK-CCMP+TKIP][ESS]");
+        assertTrue((flags & ScanCapabilities.PSK) != 0);
+        assertTrue((flags & ScanCapabilities.WPA_PSK) != 0);
+        assertTrue((flags & ScanCapabilities.WPA2_PSK) != 0);
+        assertTrue((flags & ScanCapabilities.CCMP) != 0);
+        assertTrue((flags & ScanCapabilities.TKIP) != 0);
+        assertEquals(0, flags & (ScanCapabilities.EAP | ScanCapabilities.WEP));
+    }
+
+    @Test
+    public void rsn_isWpa2() {
+        int flags = ScanCapabilities.parse("[RSN-PSK+SAE-CCMP][ESS]");
+        assertTrue((flags & ScanCapabilities.WPA2_PSK) != 0);
+        assertTrue((flags & ScanCapabilities.SAE) != 0);
+        assertEquals(0, flags & ScanCapabilities.WPA_PSK);
+    }
+
+    @Test
+    public void enterprise_andWep() {
+        int eap = ScanCapabilities.parse("[WPA-EAP-TKIP][WPA2-EAP+FT/EAP-CCMP][ESS]");
+        assertTrue((eap & ScanCapabilities.WPA_EAP) != 0);
+        assertEquals(0, eap & ScanCapabilities.PSK);
+        assertTrue((ScanCapabilities.parse("[WEP][ESS]") & ScanCapabilities.WEP) != 0);
+        assertTrue((ScanCapabilities.parse("[IEEE8021X][ESS]") & ScanCapabilities.IEEE8021X) != 0);
+    }
+
+    @Test
+    public void open_hasNoSecurity() {
+        assertEquals(0, ScanCapabilities.parse("[ESS]"));
+        assertEquals(0, ScanCapabilities.parse(""));
+        assertEquals(0, ScanCapabilities.parse(null));
+        assertTrue((ScanCapabilities.parse("[RSN-OWE-CCMP][ESS]") & ScanCapabilities.OWE) != 0);
+    }
+}
@@ -0,0 +1,61 @@
+package it.this1.wificonnector.iotter.wifi;
+
+/**
+ * Created by Vittorio on 24/02/17.
+ */
+
+/**
+ * Per-credential cost of key validation and normalization against the
+ * regex based version it replaces. Not a test, timings depend on the
+ * machine: run main() by hand.
+ */
+public class WifiKeysBenchmark {
+
+    private static final String[] KEYS = {"password", "ThisIsAPassword", "0123456789",
+            "f42c6fc52df0ebef9ebb4b90b38a5f902e83fe1b135a70e23aed762e9710a12e",
+            "F42C6FC52DF0EBEF9EBB4B90B38A5F902E83FE1B135A70E23AED762E9710A12E",
+            "f42c6fc52df0ebef9ebb4b90b38a5f902e83fe1b135a70e23aed762e9710a12g"};
+    private static final int WARM_UP = 200000;
+    private static final int ROUNDS = 1000000;
+
+    // keeps the JIT from dropping the loops
+    private static int sink;
+
+    public static void main(String[] args) {
+        for (int i = 0; i < 3; i++) {
+            run(WARM_UP, false);
+        }
+        run(ROUNDS, true);
+    }
+
+    private static void run(int rounds, boolean print) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            final String key = KEYS[i % KEYS.length];
+            if (WifiKeys.isValidPsk(key)) {
+                sink += WifiKeys.normalizePsk(key).length();
+            }
+        }
+        final long keys = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            final String key = KEYS[i % KEYS.length];
+            if (regexIsValid(key)) {
+                sink += regexNormalize(key).length();
+            }
+        }
+        final long regex = System.nanoTime() - start;
+        if (print) {
+            System.out.println(String.format("WifiKeys %d ns/credential, regex %d ns/credential (%d)",
+                    keys / rounds, regex / rounds, sink));
+        }
+    }
+
+    private static boolean regexIsValid(String password) {
+        return password.matches("[0-9A-Fa-f]{64}") || password.matches("[\\x20-\\x7E]{8,63}");
+    }
+
+    private static String regexNormalize(String password) {
+        return password.matches("[0-9A-Fa-f]{64}") ? password : '"' + password + '"';
+    }
+}
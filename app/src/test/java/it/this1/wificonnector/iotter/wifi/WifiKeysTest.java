@@ -0,0 +1,55 @@
+package it.this1.wificonnector.iotter.wifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Key validation and normalization, checked against the regex based
+ * validation it replaces.
+ */
+public class WifiKeysTest {
+
+    private static final String HEX_PSK = "f42c6fc52df0ebef9ebb4b90b38a5f902e83fe1b135a70e23aed762e9710a12e";
+
+    @Test
+    public void psk_isNormalized() {
+        assertEquals(HEX_PSK, WifiKeys.normalizePsk(HEX_PSK));
+        assertEquals("\"password\"", WifiKeys.normalizePsk("password"));
+        // 64 chars but not hex goes quoted
+        String notHex = HEX_PSK.substring(0, 63) + "g";
+        assertEquals('"' + notHex + '"', WifiKeys.normalizePsk(notHex));
+    }
+
+    @Test
+    public void psk_isValidated() {
+        assertTrue(WifiKeys.isValidPsk("password"));
+        assertTrue(WifiKeys.isValidPsk(HEX_PSK));
+        assertFalse(WifiKeys.isValidPsk("short"));
+        assertFalse(WifiKeys.isValidPsk(HEX_PSK + "0"));
+        assertFalse(WifiKeys.isValidPsk("pass\u00e8word"));
+        assertFalse(WifiKeys.isValidPsk(null));
+    }
+
+    @Test
+    public void wep_isNormalizedAndValidated() {
+        assertEquals("0123456789", WifiKeys.normalizeWepKey("0123456789"));
+        assertEquals("\"abcde\"", WifiKeys.normalizeWepKey("abcde"));
+        assertTrue(WifiKeys.isValidWepKey("0123456789abcdef0123456789"));
+        assertTrue(WifiKeys.isValidWepKey("abcdefghijklm"));
+        assertFalse(WifiKeys.isValidWepKey("abcdef"));
+    }
+
+    @Test
+    public void normalize_matchesRegexValidation() {
+        final String[] keys = {"password", HEX_PSK, HEX_PSK.toUpperCase(), HEX_PSK.substring(1),
+                HEX_PSK.substring(1) + "g", "ThisIsAPassword", "0123456789"};
+        for (String key : keys) {
+            assertEquals(regexNormalize(key), WifiKeys.normalizePsk(key));
+        }
+    }
+
+    private static String regexNormalize(String password) {
+        return password.matches("[0-9A-Fa-f]{64}") ? password : '"' + password + '"';
+    }
+}
@@ -0,0 +1,222 @@
+package it.this1.wificonnector.iotter.ws;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal WebSocket server on loopback standing for a device:
+ * every text frame is passed to a {@link Responder}, its answer
+ * (if any) is sent back on the same socket.
+ */
+class FakeIotterDevice {
+
+    interface Responder {
+        /**
+         * @param command command received
+         * @return response to send, null to stay silent
+         */
+        String respond(String command);
+    }
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final ServerSocket server;
+    private final Responder responder;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger commands = new AtomicInteger();
+
+    FakeIotterDevice(Responder responder) throws IOException {
+        this.responder = responder;
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "FakeIotterDevice");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @param path path of the URI, tells sessions apart
+     * @return URI of the device
+     */
+    String uri(String path) {
+        return "ws://127.0.0.1:" + server.getLocalPort() + "/" + path;
+    }
+
+    /**
+     * @return number of sockets opened so far
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return number of commands received so far
+     */
+    int getCommands() {
+        return commands.get();
+    }
+
+    void close() throws IOException {
+        server.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            sockets.add(socket);
+            connections.incrementAndGet();
+            Thread handler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (Exception e) {
+                        // socket dropped by client
+                    } finally {
+                        sockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            }, "FakeIotterDevice-" + connections.get());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) throws Exception {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        String key = null;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                key = line.substring(line.indexOf(':') + 1).trim();
+            }
+        }
+        if (key == null) {
+            return;
+        }
+        final byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes("UTF-8"));
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + base64(digest) + "\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+        while (true) {
+            final int opcode = in.read() & 0x0f;
+            final int second = in.read();
+            if (second < 0) {
+                return;
+            }
+            int length = second & 0x7f;
+            if (length == 126) {
+                length = (in.read() << 8) | in.read();
+            } else if (length == 127) {
+                // never sent by the tests
+                return;
+            }
+            final byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) {
+                readFully(in, mask);
+            }
+            final byte[] payload = new byte[length];
+            readFully(in, payload);
+            for (int i = 0; i < length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            if (opcode == 8) {
+                return;
+            }
+            if (opcode != 1) {
+                continue;
+            }
+            commands.incrementAndGet();
+            final String response = responder.respond(new String(payload, "UTF-8"));
+            if (response != null) {
+                send(out, response);
+            }
+        }
+    }
+
+    private static void send(OutputStream out, String text) throws IOException {
+        final byte[] data = text.getBytes("UTF-8");
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        if (data.length < 126) {
+            frame.write(data.length);
+        } else {
+            frame.write(126);
+            frame.write(data.length >> 8);
+            frame.write(data.length & 0xff);
+        }
+        frame.write(data);
+        synchronized (out) {
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                return line.toString().trim();
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+    private static String base64(byte[] data) {
+        final StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            final int b = (data[i] & 0xff) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            encoded.append(BASE64[(b >> 18) & 0x3f]).append(BASE64[(b >> 12) & 0x3f]);
+            encoded.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+            encoded.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package it.this1.wificonnector.iotter.ws;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Conversations driven against a fake device on loopback.
+ */
+public class IotterWsClientBaseTest {
+
+    private static final long COMMAND_TO = 100;
+
+    private FakeIotterDevice device;
+
+    @After
+    public void tearDown() throws Exception {
+        IotterWsSession.closeAll();
+        if (device != null) {
+            device.close();
+        }
+    }
+
+    @Test
+    public void manyTimeouts_areDeliveredOnBoundedThreads() throws Exception {
+        final int sessions = 10;
+        final int perSession = 20;
+        device = new FakeIotterDevice(new FakeIotterDevice.Responder() {
+            @Override
+            public String respond(String command) {
+                // never answers
+                return null;
+            }
+        });
+        final int before = Thread.activeCount();
+        final CountDownLatch done = new CountDownLatch(sessions * perSession);
+        final List<Conversation> conversations = new ArrayList<Conversation>();
+        for (int i = 0; i < perSession; i++) {
+            for (int s = 0; s < sessions; s++) {
+                Conversation conversation = new Conversation(device.uri("dev" + s), "ping", done);
+                conversations.add(conversation);
+                IotterWsClientBase.run(conversation);
+            }
+        }
+        int peak = before;
+        final long end = System.currentTimeMillis() + 30000;
+        while (!done.await(10, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < end) {
+            peak = Math.max(peak, Thread.activeCount());
+        }
+        assertEquals(0, done.getCount());
+
+        for (Conversation conversation : conversations) {
+            assertNull(conversation.error);
+            // never early, and not held back by handshakes or other timers
+            assertTrue("timeout after " + conversation.timedOutAfter, conversation.timedOutAfter >= COMMAND_TO);
+            assertTrue("timeout after " + conversation.timedOutAfter, conversation.timedOutAfter < COMMAND_TO + 2000);
+        }
+        assertEquals(0, IotterWsTimerWheel.shared().size());
+        // timers and handshakes run on fixed pools, sockets cost a few
+        // threads each (reading and writing threads, device side):
+        // nothing grows with the number of commands
+        final int bound = before + IotterWsScheduler.POOL_SIZE + IotterWsScheduler.CONNECT_POOL_SIZE + sessions * 3;
+        assertTrue("threads grew from " + before + " to " + peak, peak <= bound);
+        assertTrue(bound < before + sessions * perSession);
+    }
+
+    @Test
+    public void unansweredCommand_doesNotStealNextResponse() throws Exception {
+        device = new FakeIotterDevice(new FakeIotterDevice.Responder() {
+            @Override
+            public String respond(String command) {
+                // first command is lost by the device
+                return "ping-2".equals(command) ? "pong-2" : null;
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(2);
+        final Conversation first = new Conversation(device.uri("dev"), "ping-1", done);
+        final Conversation second = new Conversation(device.uri("dev"), "ping-2", done);
+        IotterWsClientBase.run(first);
+        IotterWsClientBase.run(second);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertTrue(first.timedOutAfter >= COMMAND_TO);
+        assertNull(first.response);
+        assertEquals("pong-2", second.response);
+        assertEquals(-1, second.timedOutAfter);
+        // socket of the silent conversation is not reused
+        assertEquals(2, device.getConnections());
+    }
+
+    /**
+     * Conversation sending a single command
+     */
+    static class Conversation implements IotterWsClientBase.IottersWsCallbacks {
+        private final String uri;
+        private final String command;
+        private final CountDownLatch done;
+        private boolean sent;
+        private volatile long sentAt;
+        volatile long timedOutAfter = -1;
+        volatile String response;
+        volatile String error;
+
+        Conversation(String uri, String command, CountDownLatch done) {
+            this.uri = uri;
+            this.command = command;
+            this.done = done;
+        }
+
+        @Override
+        public String onGetURI() {
+            return uri;
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public synchronized Command onExecuteCommand() {
+            if (sent) {
+                return null;
+            }
+            sent = true;
+            sentAt = System.currentTimeMillis();
+            return new Command(command, false, null, COMMAND_TO);
+        }
+
+        @Override
+        public boolean onCommandResponse(String response) {
+            this.response = response;
+            return true;
+        }
+
+        @Override
+        public boolean onCommandTimeout() {
+            timedOutAfter = System.currentTimeMillis() - sentAt;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package it.this1.wificonnector.iotter.ws;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoder registry and its LRU cache of decoded responses.
+ */
+public class IotterWsResponsesTest {
+
+    private static final String SCAN = "<wifi_scan><total>1</total>"
+            + "<ap><ssid>Home</ssid><rssi>-60</rssi><channel>6</channel><auth>3</auth></ap></wifi_scan>";
+
+    /**
+     * Register a decoder counting its calls under a name of its own
+     */
+    private static AtomicInteger registerCounting(String command) {
+        final AtomicInteger calls = new AtomicInteger();
+        IotterWsResponses.register(command, new IotterWsResponses.Decoder<String>() {
+            @Override
+            public String decode(String response) {
+                calls.incrementAndGet();
+                return response.isEmpty() ? null : "decoded " + response;
+            }
+        });
+        return calls;
+    }
+
+    @Test
+    public void identicalResponse_isDecodedOnce() {
+        AtomicInteger calls = registerCounting("test_once");
+        int hits = IotterWsResponses.getHits();
+        Object first = IotterWsResponses.decode("test_once", "payload");
+        // equal content, different instance, arguments of command ignored
+        Object second = IotterWsResponses.decode("test_once=1", new String("payload"));
+        assertEquals("decoded payload", first);
+        assertSame(first, second);
+        assertEquals(1, calls.get());
+        assertEquals(hits + 1, IotterWsResponses.getHits());
+    }
+
+    @Test
+    public void invalidResponse_isNotCached() {
+        AtomicInteger calls = registerCounting("test_invalid");
+        assertNull(IotterWsResponses.decode("test_invalid", ""));
+        assertNull(IotterWsResponses.decode("test_invalid", ""));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvicted() {
+        AtomicInteger calls = registerCounting("test_lru");
+        for (int i = 0; i < 16; i++) {
+            IotterWsResponses.decode("test_lru", "r" + i);
+        }
+        // r0 used again, r1 becomes the eldest
+        IotterWsResponses.decode("test_lru", "r0");
+        IotterWsResponses.decode("test_lru", "r16");
+        assertEquals(17, calls.get());
+        IotterWsResponses.decode("test_lru", "r0");
+        assertEquals(17, calls.get());
+        IotterWsResponses.decode("test_lru", "r1");
+        assertEquals(18, calls.get());
+    }
+
+    @Test
+    public void register_replacesDecoderAndDropsCache() {
+        registerCounting("test_replace");
+        assertEquals("decoded x", IotterWsResponses.decode("test_replace", "x"));
+        IotterWsResponses.register("test_replace", new IotterWsResponses.Decoder<Integer>() {
+            @Override
+            public Integer decode(String response) {
+                return response.length();
+            }
+        });
+        assertEquals(1, IotterWsResponses.decode("test_replace", "x"));
+    }
+
+    @Test
+    public void unknownCommandOrType_isNull() {
+        assertNull(IotterWsResponses.decode("test_unknown", "x"));
+        assertNull(IotterWsResponses.decode(null, "x"));
+        assertNull(IotterWsResponses.decode("wifi_scan", null));
+        assertNull(IotterWsResponses.decode("wifi_scan", SCAN, IotterWsStationStatus.class));
+    }
+
+    @Test
+    public void scan_isDecodedByBuiltInDecoder() {
+        IotterWsScanResult result = IotterWsResponses.decode("wifi_scan=1", SCAN, IotterWsScanResult.class);
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getEntries().size());
+        assertEquals("Home", result.getEntries().get(0).getSsid());
+    }
+
+    @Test
+    public void readScanTotal_doesNotDecode() {
+        int misses = IotterWsResponses.getMisses();
+        assertEquals(1, IotterWsResponses.readScanTotal(SCAN + " "));
+        assertEquals(0, IotterWsResponses.readScanTotal("<wifi_scan><total>0</total></wifi_scan>"));
+        assertEquals(-1, IotterWsResponses.readScanTotal("scanning"));
+        assertEquals(misses, IotterWsResponses.getMisses());
+    }
+
+    @Test
+    public void commandName_dropsArguments() {
+        assertEquals("wifi_scan", IotterWsResponses.commandName("wifi_scan=1"));
+        assertEquals("wifi_st_sta", IotterWsResponses.commandName("wifi_st_sta"));
+    }
+}
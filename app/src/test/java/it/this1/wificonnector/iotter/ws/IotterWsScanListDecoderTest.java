@@ -0,0 +1,117 @@
+package it.this1.wificonnector.iotter.ws;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of wifi_scan responses, well formed or not.
+ */
+public class IotterWsScanListDecoderTest {
+
+    private static final String SCAN = "<?xml version=\"1.0\"?>\n"
+            + "<wifi_scan>\n"
+            + "  <total>2</total>\n"
+            + "  <ap><ssid>Home</ssid><bssid>aa:bb:cc:dd:ee:ff</bssid><rssi>-60</rssi><channel>6</channel><auth>3</auth></ap>\n"
+            + "  <ap><ssid>Office</ssid><rssi>-72</rssi><channel>11</channel><auth>0</auth></ap>\n"
+            + "</wifi_scan>";
+
+    private final IotterWsScanListDecoder decoder = new IotterWsScanListDecoder();
+
+    @Test
+    public void decode_readsEveryEntry() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        assertEquals(2, decoder.decode(SCAN, entries, Integer.MAX_VALUE));
+        assertEquals(2, entries.size());
+        assertEquals(new IotterWsScanEntry("Home", "aa:bb:cc:dd:ee:ff", -60, 6, 3), entries.get(0));
+        assertEquals(new IotterWsScanEntry("Office", null, -72, 11, 0), entries.get(1));
+    }
+
+    @Test
+    public void decode_stopsAtMax() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        assertEquals(2, decoder.decode(SCAN, entries, 1));
+        assertEquals(1, entries.size());
+        assertEquals("Home", entries.get(0).getSsid());
+    }
+
+    @Test
+    public void decode_withoutTotal_returnsEntriesDecoded() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        String xml = "<wifi_scan><ap><ssid>A</ssid></ap><ap><ssid>B</ssid></ap><ap><ssid>C</ssid></ap></wifi_scan>";
+        assertEquals(3, decoder.decode(xml, entries, Integer.MAX_VALUE));
+        assertEquals("C", entries.get(2).getSsid());
+    }
+
+    @Test
+    public void truncated_keepsCompleteEntriesOnly() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        String truncated = SCAN.substring(0, SCAN.indexOf("<ssid>Office") + 9);
+        assertEquals(2, decoder.decode(truncated, entries, Integer.MAX_VALUE));
+        assertEquals(1, entries.size());
+        assertEquals("Home", entries.get(0).getSsid());
+
+        entries.clear();
+        // cut inside a tag
+        assertEquals(1, decoder.decode("<wifi_scan><ap><ssid>A</ssid></ap><ap><ss", entries, Integer.MAX_VALUE));
+        assertEquals(1, entries.size());
+    }
+
+    @Test
+    public void malformed_numbersFallBackToDefaults() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        String xml = "<wifi_scan><total>two</total><ap><ssid>A</ssid><rssi>-</rssi><channel>6a</channel><auth></auth></ap></wifi_scan>";
+        // total not valid: number of entries decoded
+        assertEquals(1, decoder.decode(xml, entries, Integer.MAX_VALUE));
+        assertEquals(new IotterWsScanEntry("A", null, 0, 0, 0), entries.get(0));
+    }
+
+    @Test
+    public void notXml_decodesNothing() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        assertEquals(0, decoder.decode("scan started", entries, Integer.MAX_VALUE));
+        assertEquals(-1, decoder.decode(null, entries, Integer.MAX_VALUE));
+        assertEquals(-1, decoder.readTotal("scan started"));
+        assertEquals(-1, decoder.readTotal(null));
+        assertTrue(entries.isEmpty());
+    }
+
+    @Test
+    public void readTotal_stopsAtTotal() {
+        assertEquals(2, decoder.readTotal(SCAN));
+        // what follows total is not looked at
+        assertEquals(7, decoder.readTotal("<wifi_scan><total>7</total><ap><ssid>broken"));
+        assertEquals(-1, decoder.readTotal("<wifi_scan><total>x</total></wifi_scan>"));
+    }
+
+    @Test
+    public void entitiesAndWhitespace() {
+        List<IotterWsScanEntry> entries = new ArrayList<IotterWsScanEntry>();
+        String xml = "<WIFI_SCAN>\r\n"
+                + "<!-- <ap><ssid>comment</ssid></ap> -->\n"
+                + "<TOTAL>\n 1 \n</TOTAL>\n"
+                + "<ap>\n\t<SSID> A&amp;B &lt;x&gt; &quot;q&quot; &apos;s&apos; &#38; &amp</SSID>\n"
+                + "\t<bssid/>\n\t<rssi> -55 </rssi>\n</ap>\n"
+                + "</WIFI_SCAN>";
+        assertEquals(1, decoder.decode(xml, entries, Integer.MAX_VALUE));
+        assertEquals(1, entries.size());
+        // unknown entities and a bare ampersand are kept as they are
+        assertEquals(" A&B <x> \"q\" 's' &#38; &amp", entries.get(0).getSsid());
+        assertNull(entries.get(0).getBssid());
+        assertEquals(-55, entries.get(0).getRssi());
+    }
+
+    @Test
+    public void decoder_isReusable() {
+        List<IotterWsScanEntry> first = new ArrayList<IotterWsScanEntry>();
+        List<IotterWsScanEntry> second = new ArrayList<IotterWsScanEntry>();
+        // first walk stops inside an entry, nothing of it leaks into the next one
+        decoder.decode("<wifi_scan><ap><ssid>X</ssid><rssi>-10</rssi>", first, Integer.MAX_VALUE);
+        decoder.decode("<wifi_scan><ap><ssid>Y</ssid></ap></wifi_scan>", second, Integer.MAX_VALUE);
+        assertTrue(first.isEmpty());
+        assertEquals(new IotterWsScanEntry("Y", null, 0, 0, 0), second.get(0));
+    }
+}
@@ -0,0 +1,63 @@
+package it.this1.wificonnector.iotter.ws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adaptive poll schedule of the scan list.
+ */
+public class IotterWsScanListTest {
+
+    @Test
+    public void firstPoll_isBeforeExpectedEnd() {
+        assertEquals(2250, IotterWsScanList.firstPollDelay(3000, false));
+        // push expected, poll is only a safety net
+        assertEquals(6000, IotterWsScanList.firstPollDelay(3000, true));
+    }
+
+    @Test
+    public void poll_isFastAroundExpectedEnd() {
+        assertEquals(IotterWsScanList.FAST_POLL, IotterWsScanList.pollDelay(2500, 3000, false, IotterWsScanList.FAST_POLL));
+        assertEquals(IotterWsScanList.FAST_POLL, IotterWsScanList.pollDelay(3749, 3000, false, 1000));
+    }
+
+    @Test
+    public void latePoll_backsOffUpToMax() {
+        long backoff = IotterWsScanList.FAST_POLL;
+        long elapsed = 3750;
+        long[] expected = {500, 1000, 2000, 2000};
+        for (long delay : expected) {
+            long next = IotterWsScanList.pollDelay(elapsed, 3000, false, backoff);
+            assertEquals(delay, next);
+            backoff = Math.max(backoff, next);
+            elapsed += next;
+        }
+    }
+
+    @Test
+    public void push_pollsAtMax() {
+        assertEquals(IotterWsScanList.MAX_POLL, IotterWsScanList.pollDelay(0, 3000, true, IotterWsScanList.FAST_POLL));
+    }
+
+    @Test
+    public void expectedScanTime_movesTowardsObserved() {
+        assertEquals(3000, IotterWsScanList.nextExpectedScanTime(3000, 3000));
+        assertEquals(2400, IotterWsScanList.nextExpectedScanTime(3000, 1000));
+        assertEquals(3600, IotterWsScanList.nextExpectedScanTime(3000, 5000));
+    }
+
+    @Test
+    public void expectedScanTime_clampsOddScans() {
+        // 0 ms counts as MIN_SCAN, one minute as MAX_SCAN
+        assertEquals((3000 * 7 + IotterWsScanList.MIN_SCAN * 3) / 10, IotterWsScanList.nextExpectedScanTime(3000, 0));
+        assertEquals((3000 * 7 + IotterWsScanList.MAX_SCAN * 3) / 10, IotterWsScanList.nextExpectedScanTime(3000, 60000));
+        // converges within the clamps
+        long expected = 3000;
+        for (int i = 0; i < 100; i++) {
+            expected = IotterWsScanList.nextExpectedScanTime(expected, 60000);
+        }
+        assertTrue(expected <= IotterWsScanList.MAX_SCAN);
+        assertTrue(expected > IotterWsScanList.MAX_SCAN - 10);
+    }
+}
@@ -0,0 +1,58 @@
+package it.this1.wificonnector.iotter.ws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of wifi_st_sta responses.
+ */
+public class IotterWsStationStatusTest {
+
+    @Test
+    public void parse_keepsLeaves() {
+        IotterWsStationStatus status = IotterWsStationStatus.parse("<?xml version=\"1.0\"?>\n"
+                + "<wifi_st_sta>\n"
+                + "  <SSID> Home </SSID>\n"
+                + "  <status>5</status>\n"
+                + "  <ip>192.168.1.20</ip>\n"
+                + "  <empty/>\n"
+                + "</wifi_st_sta>");
+        assertEquals("Home", status.getField("ssid"));
+        assertEquals("Home", status.getField("SSID"));
+        assertEquals(5, status.getInt("status", -1));
+        assertEquals("192.168.1.20", status.getField("ip"));
+        // container and empty elements are not fields
+        assertNull(status.getField("wifi_st_sta"));
+        assertNull(status.getField("empty"));
+        assertEquals(3, status.getFields().size());
+    }
+
+    @Test
+    public void endTag_mustMatchWholeName() {
+        IotterWsStationStatus status = IotterWsStationStatus.parse("<st><ssid>a</ssidx><ssid>b</ssid ></st>");
+        assertEquals("b", status.getField("ssid"));
+        status = IotterWsStationStatus.parse("<st><ssid>a</ssidx></st>");
+        assertNull(status.getField("ssid"));
+    }
+
+    @Test
+    public void attributes_areSkipped() {
+        IotterWsStationStatus status = IotterWsStationStatus.parse("<st><rssi unit=\"dBm\">-61</rssi></st>");
+        assertEquals(-61, status.getInt("rssi", 0));
+    }
+
+    @Test
+    public void getInt_fallsBackToDefault() {
+        IotterWsStationStatus status = IotterWsStationStatus.parse("<st><status>up</status></st>");
+        assertEquals(-1, status.getInt("status", -1));
+        assertEquals(-1, status.getInt("missing", -1));
+    }
+
+    @Test
+    public void malformed_givesNoFields() {
+        assertTrue(IotterWsStationStatus.parse(null).getFields().isEmpty());
+        assertTrue(IotterWsStationStatus.parse("not xml").getFields().isEmpty());
+        assertTrue(IotterWsStationStatus.parse("<st><ssid>trunc").getFields().isEmpty());
+    }
+}